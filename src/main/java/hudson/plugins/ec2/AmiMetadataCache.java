@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Image;
+
+/**
+ * Descriptions of the AMIs an {@link EC2Cloud} launches, keyed by image ID.
+ *
+ * <p>
+ * Images are described by ID only, never by listing the region, and are kept for {@link #TTL} milliseconds.
+ * {@link EC2InventoryMonitor} refreshes the AMIs of all templates ahead of their expiry, so that launches
+ * normally find what they need here without calling EC2.
+ */
+public class AmiMetadataCache {
+    private final EC2Cloud cloud;
+
+    private final ConcurrentHashMap<String, Entry> images = new ConcurrentHashMap<String, Entry>();
+
+    public AmiMetadataCache(EC2Cloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Description of the given AMI, described from EC2 if it isn't cached or has expired.
+     *
+     * @throws AmazonClientException if EC2 doesn't know the AMI.
+     */
+    public Image getImage(String ami) throws AmazonClientException {
+        Entry e = images.get(ami);
+        if (e == null || e.isExpired()) {
+            refresh(Collections.singleton(ami));
+            e = images.get(ami);
+            if (e == null)
+                throw new AmazonClientException("Unable to find AMI " + ami);
+        }
+        return e.image;
+    }
+
+    public List<BlockDeviceMapping> getBlockDeviceMappings(String ami) throws AmazonClientException {
+        return getImage(ami).getBlockDeviceMappings();
+    }
+
+    public String getRootDeviceType(String ami) throws AmazonClientException {
+        return getImage(ami).getRootDeviceType();
+    }
+
+    /**
+     * Describes the given AMIs that are not cached or will expire soon, with a single request.
+     */
+    public void refreshExpiring(Collection<String> amis) throws AmazonClientException {
+        List<String> expiring = new ArrayList<String>();
+        for (String ami : amis) {
+            Entry e = images.get(ami);
+            // refresh ahead of time, so that launches don't have to
+            if (e == null || e.isExpired(TTL / 2))
+                expiring.add(ami);
+        }
+        if (!expiring.isEmpty())
+            refresh(expiring);
+    }
+
+    private void refresh(Collection<String> amis) throws AmazonClientException {
+        // filter rather than list the IDs, so that one AMI that is gone doesn't fail the whole call
+        DescribeImagesRequest request = new DescribeImagesRequest().withFilters(
+                new Filter("image-id").withValues(amis));
+        for (Image image : cloud.connect().describeImages(request).getImages()) {
+            images.put(image.getImageId(), new Entry(image));
+        }
+        LOGGER.log(Level.FINE, "Described AMIs {0} for {1}", new Object[] {amis, cloud.name});
+    }
+
+    /**
+     * Forgets all cached AMIs.
+     */
+    public void clear() {
+        images.clear();
+    }
+
+    private static final class Entry {
+        final Image image;
+        final long fetchTime = System.currentTimeMillis();
+
+        Entry(Image image) {
+            this.image = image;
+        }
+
+        boolean isExpired() {
+            return isExpired(TTL);
+        }
+
+        boolean isExpired(long ttl) {
+            return System.currentTimeMillis() - fetchTime > ttl;
+        }
+    }
+
+    /**
+     * How long (in milliseconds) an AMI description is used before it is described again.
+     */
+    private static final long TTL = Long.getLong("jenkins.ec2.amiMetadataCacheTime", TimeUnit.HOURS.toMillis(1));
+
+    private static final Logger LOGGER = Logger.getLogger(AmiMetadataCache.class.getName());
+}
@@ -0,0 +1,333 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2;
+
+import hudson.model.Api;
+import hudson.plugins.ec2.util.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.StaplerProxy;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+
+/**
+ * The calls a cloud made to the EC2 API: how many of each operation, how long they took, and which of
+ * them failed or were throttled, by operation and by the code path that made them.
+ *
+ * <p>
+ * The code path, or caller, is the outermost method of this plugin on the stack of the calling thread,
+ * such as {@code EC2Cloud.provision}, {@code EC2InventoryMonitor.execute} or {@code EC2Cloud.doProvision},
+ * so callers don't have to label their calls. Calls made from the thread pools the plugin hands work to
+ * are attributed to the task they ran, such as {@code InstanceInventory.run}.
+ *
+ * <p>
+ * Shown at {@code /cloud/NAME/apiMetrics/}, with the numbers in {@code api/json} and in {@code text}.
+ * Latencies include the retries the AWS SDK makes on its own, throttled requests among them, so only the
+ * calls still throttled after those count as throttled. The metrics start over when Jenkins restarts or
+ * the cloud is reconfigured.
+ */
+@ExportedBean
+public class ApiMetrics implements StaplerProxy {
+    /* error codes EC2 answers with when requests exceed the account's rate */
+    private static final Set<String> THROTTLE_CODES = new HashSet<String>(Arrays.asList(
+            "RequestLimitExceeded", "Throttling", "ThrottlingException"));
+
+    private final ConcurrentMap<String, Stats> operations = new ConcurrentHashMap<String, Stats>();
+    private final ConcurrentMap<String, Stats> callers = new ConcurrentHashMap<String, Stats>();
+
+    /**
+     * Decorates the given client so that its calls are counted here.
+     */
+    public AmazonEC2 wrap(final AmazonEC2 ec2) {
+        return (AmazonEC2) Proxy.newProxyInstance(AmazonEC2.class.getClassLoader(), new Class<?>[] {AmazonEC2.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (!isApiCall(method))
+                            return invokeUnwrapped(ec2, method, args);
+                        String caller = getCaller();
+                        long start = System.nanoTime();
+                        String error = null;
+                        try {
+                            return invokeUnwrapped(ec2, method, args);
+                        } catch (AmazonServiceException e) {
+                            error = e.getErrorCode() == null ? "HTTP " + e.getStatusCode() : e.getErrorCode();
+                            throw e;
+                        } catch (RuntimeException e) {
+                            error = e.getClass().getSimpleName();
+                            throw e;
+                        } catch (Error e) {
+                            error = e.getClass().getSimpleName();
+                            throw e;
+                        } finally {
+                            record(method.getName(), caller, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), error);
+                        }
+                    }
+                });
+    }
+
+    private static Object invokeUnwrapped(AmazonEC2 ec2, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(ec2, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Whether the method sends a request, as opposed to configuring the client.
+     */
+    private static boolean isApiCall(Method method) {
+        String name = method.getName();
+        return method.getDeclaringClass() != Object.class && !name.startsWith("set") && !name.equals("shutdown")
+                && !name.equals("getCachedResponseMetadata");
+    }
+
+    /**
+     * The outermost method of this plugin on the stack, as {@code Class.method}.
+     */
+    static String getCaller() {
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        for (int i = stack.length - 1; i >= 0; i--) {
+            String className = stack[i].getClassName();
+            if (className.startsWith("hudson.plugins.ec2.") && !className.equals(ApiMetrics.class.getName())
+                    && !className.startsWith(ApiMetrics.class.getName() + "$")) {
+                String simpleName = className.substring(className.lastIndexOf('.') + 1);
+                int nested = simpleName.indexOf('$');
+                if (nested > 0)
+                    simpleName = simpleName.substring(0, nested);
+                return simpleName + "." + stack[i].getMethodName();
+            }
+        }
+        return "other";
+    }
+
+    void record(String operation, String caller, long millis, String error) {
+        boolean throttled = error != null && THROTTLE_CODES.contains(error);
+        get(operations, operation).record(caller, millis, error, throttled);
+        get(callers, caller).record(operation, millis, error, throttled);
+    }
+
+    private static Stats get(ConcurrentMap<String, Stats> map, String name) {
+        Stats s = map.get(name);
+        if (s == null) {
+            Stats n = map.putIfAbsent(name, s = new Stats(name));
+            if (n != null)
+                s = n;
+        }
+        return s;
+    }
+
+    /**
+     * The operations called, busiest first, each broken down by caller.
+     */
+    @Exported
+    public List<Stats> getOperations() {
+        return sorted(operations);
+    }
+
+    /**
+     * The callers, busiest first, each broken down by operation.
+     */
+    @Exported
+    public List<Stats> getCallers() {
+        return sorted(callers);
+    }
+
+    private static List<Stats> sorted(ConcurrentMap<String, Stats> map) {
+        List<Stats> r = new ArrayList<Stats>(map.values());
+        Collections.sort(r, BUSIEST_FIRST);
+        return r;
+    }
+
+    public Object getTarget() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        return this;
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    /**
+     * The numbers as text: a header line, then one tab separated line per operation and per caller.
+     */
+    public void doText(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        rsp.setContentType("text/plain;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.println("by\tname\tcalls\terrors\tthrottled\tmean\tp50\tp90\tp99\tmax");
+        for (Stats s : getOperations()) {
+            print(w, "operation", s);
+        }
+        for (Stats s : getCallers()) {
+            print(w, "caller", s);
+        }
+        w.flush();
+    }
+
+    private static void print(PrintWriter w, String by, Stats s) {
+        w.println(by + "\t" + s.getName() + "\t" + s.getCalls() + "\t" + s.getErrors() + "\t" + s.getThrottled() + "\t"
+                + s.getMean() + "\t" + s.getP50() + "\t" + s.getP90() + "\t" + s.getP99() + "\t" + s.getMax());
+    }
+
+    private static final Comparator<Stats> BUSIEST_FIRST = new Comparator<Stats>() {
+        public int compare(Stats a, Stats b) {
+            long x = a.getCalls(), y = b.getCalls();
+            return x > y ? -1 : x < y ? 1 : a.getName().compareTo(b.getName());
+        }
+    };
+
+    /**
+     * The calls of one operation or one caller. Latencies are in milliseconds.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Stats {
+        private final String name;
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong throttled = new AtomicLong();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        /* calls by caller for an operation, or by operation for a caller */
+        private final ConcurrentMap<String, AtomicLong> breakdown = new ConcurrentHashMap<String, AtomicLong>();
+        private final ConcurrentMap<String, AtomicLong> errorCodes = new ConcurrentHashMap<String, AtomicLong>();
+
+        Stats(String name) {
+            this.name = name;
+        }
+
+        void record(String other, long millis, String error, boolean throttled) {
+            latency.record(millis);
+            increment(breakdown, other);
+            if (error != null) {
+                errors.incrementAndGet();
+                increment(errorCodes, error);
+                if (throttled)
+                    this.throttled.incrementAndGet();
+            }
+        }
+
+        private static void increment(ConcurrentMap<String, AtomicLong> counts, String key) {
+            AtomicLong n = counts.get(key);
+            if (n == null) {
+                AtomicLong m = counts.putIfAbsent(key, n = new AtomicLong());
+                if (m != null)
+                    n = m;
+            }
+            n.incrementAndGet();
+        }
+
+        private static Map<String, Long> snapshot(ConcurrentMap<String, AtomicLong> counts) {
+            Map<String, Long> r = new TreeMap<String, Long>();
+            for (Map.Entry<String, AtomicLong> e : counts.entrySet()) {
+                r.put(e.getKey(), e.getValue().get());
+            }
+            return r;
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public long getCalls() {
+            return latency.getCount();
+        }
+
+        @Exported
+        public long getErrors() {
+            return errors.get();
+        }
+
+        @Exported
+        public long getThrottled() {
+            return throttled.get();
+        }
+
+        @Exported
+        public long getMean() {
+            return latency.getMean();
+        }
+
+        @Exported
+        public long getP50() {
+            return latency.getPercentile(0.5);
+        }
+
+        @Exported
+        public long getP90() {
+            return latency.getPercentile(0.9);
+        }
+
+        @Exported
+        public long getP99() {
+            return latency.getPercentile(0.99);
+        }
+
+        @Exported
+        public long getMax() {
+            return latency.getMax();
+        }
+
+        /**
+         * Calls by caller for an operation, or by operation for a caller.
+         */
+        @Exported
+        public Map<String, Long> getBreakdown() {
+            return snapshot(breakdown);
+        }
+
+        /**
+         * Failed calls by EC2 error code, or by exception for the calls that got no answer.
+         */
+        @Exported
+        public Map<String, Long> getErrorCodes() {
+            return snapshot(errorCodes);
+        }
+    }
+}
@@ -53,6 +53,7 @@ import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 
+import jenkins.model.Jenkins;
 import jenkins.util.Timer;
 import net.sf.json.JSONObject;
 
@@ -73,9 +74,11 @@ import com.amazonaws.services.ec2.model.InstanceStateName;
 import com.amazonaws.services.ec2.model.InstanceType;
 import com.amazonaws.services.ec2.model.RebootInstancesRequest;
 import com.amazonaws.services.ec2.model.Reservation;
-import com.amazonaws.services.ec2.model.StopInstancesRequest;
 import com.amazonaws.services.ec2.model.Tag;
-import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * Slave running on EC2.
  *
@@ -114,6 +117,9 @@ public abstract class EC2AbstractSlave extends Slave {
     public final String cloudName;
     public AMITypeData amiType;
 
+    /* Whether the stopped instance is kept in the warm pool of its template, see EC2WarmPoolMaintainer */
+    private volatile boolean inWarmPool;
+
     // Temporary stuff that is obtained live from EC2
     public transient String publicDNS;
     public transient String privateDNS;
@@ -132,6 +138,9 @@ public abstract class EC2AbstractSlave extends Slave {
     
     protected transient volatile Future<?> ongoingRebootReconnect;
 
+    /* Times the launch in progress, see EC2Computer#markLaunchPhase */
+    transient volatile LaunchTimer launchTimer;
+
     // Deprecated by the AMITypeData data structure
     @Deprecated
     protected transient int sshPort;
@@ -187,6 +196,14 @@ public abstract class EC2AbstractSlave extends Slave {
     	return (EC2Cloud) Hudson.getInstance().getCloud(cloudName);
     }
 
+    /**
+     * The template this slave was provisioned from, or null if it no longer exists.
+     */
+    public SlaveTemplate getTemplate() {
+        EC2Cloud cloud = getCloud();
+        return cloud == null ? null : cloud.getTemplate(getNodeDescription());
+    }
+
     /**
      * See http://aws.amazon.com/ec2/instance-types/
      */
@@ -228,6 +245,18 @@ public abstract class EC2AbstractSlave extends Slave {
         return instanceId;
     }
 
+    /**
+     * Whether the instance is kept initialized and stopped in the warm pool of its template, and so
+     * must be neither connected nor started until {@link SlaveTemplate#provision} draws it from the pool.
+     */
+    public boolean isInWarmPool() {
+        return inWarmPool;
+    }
+
+    void setInWarmPool(boolean inWarmPool) {
+        this.inWarmPool = inWarmPool;
+    }
+
     @Override
     public Computer createComputer() {
         return new EC2Computer(this);
@@ -280,35 +309,84 @@ public abstract class EC2AbstractSlave extends Slave {
         Timer.get().schedule(new RebootMonitor(), REBOOT_TIMEOUT, TimeUnit.SECONDS);
     }
 
-    void stop() {
+    /**
+     * Stops the instance. The stop request is sent in the background, together with those of the other
+     * slaves of the cloud.
+     */
+    ListenableFuture<Boolean> stop() {
         disconnect(null);
-        try {
-            AmazonEC2 ec2 = getCloud().connect();
-            StopInstancesRequest request = new StopInstancesRequest(
-                    Collections.singletonList(getInstanceId()));
-	        LOGGER.fine("Sending stop request for " + getInstanceId());
-            ec2.stopInstances(request);
-            LOGGER.info("EC2 instance stop request sent for " + getInstanceId());
-            toComputer().disconnect(null);
-        } catch (AmazonClientException e) {
-            Instance i = getInstance(getInstanceId(), getCloud());
-            LOGGER.log(Level.WARNING, "Failed to stop EC2 instance: "+getInstanceId() + " info: "+((i != null)?i:"") , e);
-        }
+        return getCloud().getShutdownQueue().stop(getInstanceId());
     }
 
-    boolean terminateInstance() {
+    /**
+     * Terminates the instance. The terminate request is sent in the background, together with those of
+     * the other slaves of the cloud; an instance that is already gone counts as terminated.
+     */
+    ListenableFuture<Boolean> terminateInstance() {
         disconnect(null);
-        try {
-            AmazonEC2 ec2 = getCloud().connect();
-            TerminateInstancesRequest request = new TerminateInstancesRequest(Collections.singletonList(getInstanceId()));
-	        LOGGER.fine("Sending terminate request for " + getInstanceId());
-            ec2.terminateInstances(request);
-            LOGGER.info("EC2 instance terminate request sent for "+getInstanceId());
-            return true;
-        } catch (AmazonClientException e) {
-            LOGGER.log(Level.WARNING,"Failed to terminate EC2 instance: "+getInstanceId(),e);
-            return false;
+        return getCloud().getShutdownQueue().terminate(getInstanceId());
+    }
+
+    /**
+     * Removes the slave once the instance is terminated. Until then the slave is all that tracks the instance,
+     * so it stays (and is saved with the other nodes should Jenkins restart first), and is reconnected if the
+     * terminate request fails, for its retention strategy to retire it again.
+     */
+    void removeOnceTerminated(ListenableFuture<Boolean> terminated) {
+        Futures.addCallback(terminated, new FutureCallback<Boolean>() {
+            public void onSuccess(Boolean done) {
+                if (!done) {
+                    retryShutdownLater("terminate");
+                    return;
+                }
+                try {
+                    Jenkins.getInstance().removeNode(EC2AbstractSlave.this);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to remove slave " + getNodeName() + " of EC2 instance " + getInstanceId(), e);
+                }
+            }
+
+            public void onFailure(Throwable t) {
+                LOGGER.log(Level.WARNING, "Failed to terminate EC2 instance " + getInstanceId(), t);
+                retryShutdownLater("terminate");
+            }
+        }, Computer.threadPoolForRemoting);
+    }
+
+    /**
+     * Reconnects the slave if the stop request fails, for its retention strategy to stop it again.
+     */
+    void reconnectUnlessStopped(ListenableFuture<Boolean> stopped) {
+        Futures.addCallback(stopped, new FutureCallback<Boolean>() {
+            public void onSuccess(Boolean done) {
+                if (!done)
+                    retryShutdownLater("stop");
+            }
+
+            public void onFailure(Throwable t) {
+                LOGGER.log(Level.WARNING, "Failed to stop EC2 instance " + getInstanceId(), t);
+                retryShutdownLater("stop");
+            }
+        }, Computer.threadPoolForRemoting);
+    }
+
+    private void retryShutdownLater(String verb) {
+        LOGGER.warning("Failed to " + verb + " EC2 instance " + getInstanceId() + ", keeping slave " + getNodeName()
+                + " to retry once it idles out again");
+        Computer computer = toComputer();
+        if (inWarmPool) {
+            // of no use to the pool running, and would never idle out while kept offline for it
+            setInWarmPool(false);
+            try {
+                Hudson.getInstance().save();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save that " + getNodeName() + " left the warm pool", e);
+            }
+            if (computer != null && computer.getOfflineCause() == EC2WarmPoolMaintainer.WARM_POOL_OFFLINE_CAUSE)
+                computer.setTemporarilyOffline(false, null);
         }
+        if (computer != null)
+            computer.connect(false);
     }
 
     void takeOffline(OfflineCause cause)
@@ -389,7 +467,7 @@ public abstract class EC2AbstractSlave extends Slave {
     	if (!stopOnTerminate) {
     		terminate();
     	} else {
-    		stop();
+    		reconnectUnlessStopped(stop());
     	}
     }
 
@@ -449,11 +527,13 @@ public abstract class EC2AbstractSlave extends Slave {
     }
 
     /* Much of the EC2 data is beyond our direct control, therefore we need to refresh it from time to
-       time to ensure we reflect the reality of the instances. */
+       time to ensure we reflect the reality of the instances.
+       Unless forced, this never calls EC2 itself: it serves what the cloud's inventory has, and asks the
+       inventory to refresh our instance in the background. */
     protected void fetchLiveInstanceData( boolean force ) throws AmazonClientException {
-		/* If we've grabbed the data recently, don't bother getting it again unless we are forced */
         long now = System.currentTimeMillis();
-        if ((lastFetchTime > 0) && (now - lastFetchTime < MIN_FETCH_TIME) && !force) {
+        if (!force) {
+            serveLiveInstanceData(now);
             return;
         }
 
@@ -468,9 +548,37 @@ public abstract class EC2AbstractSlave extends Slave {
           return;
         }
 
-        Instance i = getInstance(getInstanceId(), getCloud());
+        updateLiveInstanceData(getInstance(getInstanceId(), getCloud()), now);
+    }
 
-        lastFetchTime = now;
+    private void serveLiveInstanceData(long now) {
+        EC2Cloud cloud = getCloud();
+        // don't use getInstanceId(), spot slaves may have to call EC2 to find it
+        if (cloud == null || instanceId == null || instanceId.length() == 0)
+            return;
+
+        InstanceInventory inventory = cloud.getInventory();
+        Instance i = inventory.getInstance(instanceId);
+        if (i != null && i != lastFetchInstance) {
+            updateLiveInstanceData(i, lastFetchTime);
+        }
+
+        /* If we've asked for the data recently, don't bother asking again */
+        if (lastFetchTime == 0 || now - lastFetchTime >= MIN_FETCH_TIME) {
+            lastFetchTime = now;
+            inventory.refreshLater(instanceId);
+        }
+    }
+
+    /**
+     * Records instance data fetched for this slave, either by {@link #fetchLiveInstanceData(boolean)}
+     * or in bulk by {@link EC2SlaveMonitor}.
+     *
+     * @param i the description of our instance, or null if EC2 doesn't know it.
+     * @param fetchTime when the data was fetched.
+     */
+    protected void updateLiveInstanceData(Instance i, long fetchTime) {
+        lastFetchTime = fetchTime;
         lastFetchInstance = i;
         if (i == null)
             return;
@@ -24,12 +24,16 @@
 package hudson.plugins.ec2;
 
 import com.amazonaws.ClientConfiguration;
+import hudson.Extension;
 import hudson.ProxyConfiguration;
+import hudson.XmlFile;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Hudson;
 import hudson.model.Label;
 import hudson.model.Node;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
 import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner.PlannedNode;
 import hudson.util.FormValidation;
@@ -51,7 +55,11 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -65,6 +73,7 @@ import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.AWSCredentials;
@@ -76,17 +85,23 @@ import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.CreateKeyPairRequest;
 import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceStateName;
 import com.amazonaws.services.ec2.model.InstanceType;
 import com.amazonaws.services.ec2.model.KeyPair;
 import com.amazonaws.services.ec2.model.KeyPairInfo;
-import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.SpotInstanceRequest;
 import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import static javax.servlet.http.HttpServletResponse.*;
 
@@ -115,12 +130,33 @@ public abstract class EC2Cloud extends Cloud {
 
     protected transient AmazonEC2 connection;
 
+    private transient InstanceInventory inventory;
+
+    private transient InstanceShutdownQueue shutdownQueue;
+
+    private transient AmiMetadataCache amiMetadata;
+
+    private transient SecurityGroupCache securityGroupCache;
+
+    private transient LaunchMetrics launchMetrics;
+
+    private transient ApiMetrics apiMetrics;
+
+    /* Remembered answers of getTemplate(Label): index into templates, or -1 */
+    private transient ConcurrentMap<Label, Integer> templateIndex;
+    private transient volatile SlaveTemplate nullLabelTemplate;
+
+    /* Spot request states looked up during the current provisioning tick, by request ID */
+    private transient volatile Map<String, String> spotRequestStates;
+    private transient volatile long spotRequestStatesTime;
+
     private static AWSCredentials awsCredentials;
 
     /* Track the count per-AMI identifiers for AMIs currently being
-     * provisioned, but not necessarily reported yet by Amazon.
+     * provisioned by this cloud, but not necessarily reported yet by Amazon.
      */
-    private static HashMap<String, Integer> provisioningAmis = new HashMap<String, Integer>();
+    private transient ConcurrentMap<String, AtomicInteger> provisioningAmis;
+    private transient AtomicInteger provisioningTotal;
 
     protected EC2Cloud(String id, boolean useInstanceProfileForCredentials, String accessId, String secretKey, String privateKey, String instanceCapStr, List<? extends SlaveTemplate> templates) {
         super(id);
@@ -150,6 +186,17 @@ public abstract class EC2Cloud extends Cloud {
     protected Object readResolve() {
         for (SlaveTemplate t : templates)
             t.parent = this;
+        templateIndex = new ConcurrentHashMap<Label, Integer>();
+        invalidateTemplateIndex();
+        inventory = new InstanceInventory(this);
+        shutdownQueue = new InstanceShutdownQueue(this);
+        amiMetadata = new AmiMetadataCache(this);
+        securityGroupCache = new SecurityGroupCache();
+        launchMetrics = new LaunchMetrics();
+        apiMetrics = new ApiMetrics();
+        spotRequestStates = Collections.emptyMap();
+        provisioningAmis = new ConcurrentHashMap<String, AtomicInteger>();
+        provisioningTotal = new AtomicInteger();
         return this;
     }
 
@@ -191,24 +238,57 @@ public abstract class EC2Cloud extends Cloud {
 
     /**
      * Gets {@link SlaveTemplate} that has the matching {@link Label}.
+     *
+     * <p>
+     * The answer for each label is remembered, as {@link hudson.slaves.NodeProvisioner} asks for
+     * the same labels over and over again.
      */
     public SlaveTemplate getTemplate(Label label) {
-        for (SlaveTemplate t : templates) {
+        if (label == null) {
+            return nullLabelTemplate;
+        }
+        Integer index = templateIndex.get(label);
+        if (index == null) {
+            index = findTemplate(label);
+            if (templateIndex.size() >= TEMPLATE_INDEX_SIZE) {
+                templateIndex.clear();
+            }
+            templateIndex.put(label, index);
+        }
+        return index < 0 ? null : templates.get(index);
+    }
+
+    /**
+     * Index of the first template matching the label, or -1.
+     */
+    private int findTemplate(Label label) {
+        for (int i = 0; i < templates.size(); i++) {
+            SlaveTemplate t = templates.get(i);
             if(t.getMode() == Node.Mode.NORMAL) {
                 if(label == null || label.matches(t.getLabelSet())) {
-                    return t;
+                    return i;
                 }
             } else if (t.getMode() == Node.Mode.EXCLUSIVE){
                 if(label != null && label.matches(t.getLabelSet())) {
-                    return t;
+                    return i;
                 }
             }
         }
-        return null;
+        return -1;
+    }
+
+    /**
+     * Forgets the remembered label lookups of {@link #getTemplate(Label)}.
+     */
+    public void invalidateTemplateIndex() {
+        int index = findTemplate(null);
+        nullLabelTemplate = index < 0 ? null : templates.get(index);
+        templateIndex.clear();
     }
 
     /**
      * Gets the {@link KeyPairInfo} used for the launch.
+     * It is looked up once and then reused until {@link #invalidateKeyPair()}.
      */
     public synchronized KeyPair getKeyPair() throws AmazonClientException, IOException {
         if(usableKeyPair==null)
@@ -216,26 +296,66 @@ public abstract class EC2Cloud extends Cloud {
         return usableKeyPair;
     }
 
+    /**
+     * Forgets the key pair found by {@link #getKeyPair()}, for example because EC2 no longer knows it.
+     */
+    public synchronized void invalidateKeyPair() {
+        usableKeyPair = null;
+    }
+
+    /**
+     * Gets the snapshot of the instances of this cloud, used to answer the instance cap checks.
+     */
+    public InstanceInventory getInventory() {
+        return inventory;
+    }
+
+    /**
+     * Gets the queue through which the instances of this cloud are terminated and stopped.
+     */
+    public InstanceShutdownQueue getShutdownQueue() {
+        return shutdownQueue;
+    }
+
+    /**
+     * Gets how long the slaves of this cloud took to launch.
+     */
+    public LaunchMetrics getLaunchMetrics() {
+        return launchMetrics;
+    }
+
+    /**
+     * Gets the calls this cloud made to the EC2 API through {@link #connect()}.
+     */
+    public ApiMetrics getApiMetrics() {
+        return apiMetrics;
+    }
+
+    /**
+     * Gets the descriptions of the AMIs launched by this cloud.
+     */
+    public AmiMetadataCache getAmiMetadata() {
+        return amiMetadata;
+    }
+
+    /**
+     * Gets the security group IDs resolved for the VPC launches of this cloud.
+     */
+    public SecurityGroupCache getSecurityGroupCache() {
+        return securityGroupCache;
+    }
+
     /**
      * Counts the number of instances in EC2 currently running that are using the specifed image.
      *
      * @param ami If AMI is left null, then all instances are counted.
      * <p>
      * This includes those instances that may be started outside Hudson.
+     * The count comes from the {@link InstanceInventory}, so it can lag behind by one refresh period
+     * for instances that weren't started or stopped by this plugin.
      */
     public int countCurrentEC2Slaves(String ami) throws AmazonClientException {
-        int n=0;
-        for (Reservation r : connect().describeInstances().getReservations()) {
-            for (Instance i : r.getInstances()) {
-                if (isEc2ProvisionedSlave(i, ami)) {
-                    InstanceStateName stateName = InstanceStateName.fromValue(i.getState().getName());
-                    if (stateName == InstanceStateName.Pending || stateName == InstanceStateName.Running) {
-                        n++;
-                    }
-                }
-            }
-        }
-        return n;
+        return inventory.countSlaves(ami);
     }
 
     protected boolean isEc2ProvisionedSlave(Instance i, String ami) {
@@ -267,6 +387,21 @@ public abstract class EC2Cloud extends Cloud {
         rsp.sendRedirect2(req.getContextPath()+"/computer/"+node.getNodeName());
     }
 
+    /**
+     * Drops the key pair, security group and AMI lookups this cloud has cached,
+     * for example after changing them in the EC2 console.
+     */
+    @RequirePOST
+    public HttpResponse doFlushCaches() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        invalidateKeyPair();
+        securityGroupCache.clear();
+        amiMetadata.clear();
+        invalidateTemplateIndex();
+        LOGGER.info("Flushed the cached EC2 lookups of " + name);
+        return HttpResponses.forwardToPreviousPage();
+    }
+
     public HttpResponse doProvision(@QueryParameter String template) throws ServletException, IOException {
         checkPermission(PROVISION);
         if(template==null) {
@@ -293,88 +428,134 @@ public abstract class EC2Cloud extends Cloud {
     /**
      * Check for the count of EC2 slaves and determine if a new slave can be added.
      * Takes into account both what Amazon reports as well as an internal count
-     * of slaves currently being "provisioned".
+     * of slaves currently being "provisioned", and reserves a slot in the latter
+     * if there is room under both caps.
      */
-    private boolean addProvisionedSlave(String ami, int amiCap) throws AmazonClientException {
-        int estimatedTotalSlaves = countCurrentEC2Slaves(null);
-        int estimatedAmiSlaves = countCurrentEC2Slaves(ami);
-
-        synchronized (provisioningAmis) {
-            int currentProvisioning;
-
-            for (int amiCount : provisioningAmis.values()) {
-                estimatedTotalSlaves += amiCount;
-            }
-            try {
-                currentProvisioning = provisioningAmis.get(ami);
-            }
-            catch (NullPointerException npe) {
-                currentProvisioning = 0;
-            }
-
-            estimatedAmiSlaves += currentProvisioning;
+    /*package*/ boolean addProvisionedSlave(String ami, int amiCap) throws AmazonClientException {
+        int currentTotalSlaves = countCurrentEC2Slaves(null);
+        int currentAmiSlaves = countCurrentEC2Slaves(ami);
+
+        AtomicInteger amiProvisioning = provisioningAmis.get(ami);
+        if (amiProvisioning == null) {
+            AtomicInteger n = provisioningAmis.putIfAbsent(ami, amiProvisioning = new AtomicInteger());
+            if (n != null)
+                amiProvisioning = n;
+        }
 
-            if(estimatedTotalSlaves >= instanceCap) {
+        int totalProvisioning;
+        do {
+            totalProvisioning = provisioningTotal.get();
+            if (currentTotalSlaves + totalProvisioning >= instanceCap) {
                 LOGGER.log(Level.INFO, "Total instance cap of " + instanceCap +
                                     " reached, not provisioning.");
                 return false;      // maxed out
             }
+        } while (!provisioningTotal.compareAndSet(totalProvisioning, totalProvisioning + 1));
 
-            if (estimatedAmiSlaves >= amiCap) {
+        int currentProvisioning;
+        do {
+            currentProvisioning = amiProvisioning.get();
+            if (currentAmiSlaves + currentProvisioning >= amiCap) {
+                decrement(provisioningTotal);
                 LOGGER.log(Level.INFO, "AMI Instance cap of " + amiCap +
                                     " reached for ami " + ami +
                                     ", not provisioning.");
                 return false;      // maxed out
             }
-
-            LOGGER.log(Level.INFO,
-                            "Provisioning for AMI " + ami + "; " +
-                            "Estimated number of total slaves: "
-                            + String.valueOf(estimatedTotalSlaves) + "; " +
-                            "Estimated number of slaves for ami "
-                            + ami + ": "
-                            + String.valueOf(estimatedAmiSlaves)
-                    );
-
-            provisioningAmis.put(ami, currentProvisioning + 1);
-            return true;
-        }
+        } while (!amiProvisioning.compareAndSet(currentProvisioning, currentProvisioning + 1));
+
+        LOGGER.log(Level.INFO,
+                        "Provisioning for AMI " + ami + "; " +
+                        "Estimated number of total slaves: "
+                        + String.valueOf(currentTotalSlaves + totalProvisioning) + "; " +
+                        "Estimated number of slaves for ami "
+                        + ami + ": "
+                        + String.valueOf(currentAmiSlaves + currentProvisioning)
+                );
+        return true;
     }
 
     /**
      * Decrease the count of slaves being "provisioned".
      */
-    private void decrementAmiSlaveProvision(String ami) {
-        synchronized (provisioningAmis) {
-            int currentProvisioning;
-            try {
-                currentProvisioning = provisioningAmis.get(ami);
-            } catch(NullPointerException npe) {
+    /*package*/ void decrementAmiSlaveProvision(String ami) {
+        AtomicInteger amiProvisioning = provisioningAmis.get(ami);
+        if (amiProvisioning == null)
+            return;
+        decrement(amiProvisioning);
+        decrement(provisioningTotal);
+    }
+
+    private static void decrement(AtomicInteger n) {
+        int v;
+        do {
+            v = n.get();
+            if (v <= 0)
                 return;
+        } while (!n.compareAndSet(v, v - 1));
+    }
+
+    /**
+     * Looks up the states of the given spot instance requests with as few describe calls as possible.
+     * States are remembered for {@link #SPOT_REQUEST_CACHE_TIME} so that the repeated calls
+     * {@link hudson.slaves.NodeProvisioner} makes within one tick only describe requests they haven't seen yet.
+     */
+    private Map<String, String> getSpotRequestStates(List<String> spotRequestIds) throws AmazonClientException {
+        long now = System.currentTimeMillis();
+        Map<String, String> states = new HashMap<String, String>();
+        if (now - spotRequestStatesTime < SPOT_REQUEST_CACHE_TIME) {
+            states.putAll(spotRequestStates);
+        } else {
+            spotRequestStatesTime = now;
+        }
+
+        List<String> missing = new ArrayList<String>();
+        for (String id : spotRequestIds) {
+            if (id != null && !states.containsKey(id))
+                missing.add(id);
+        }
+        if (missing.isEmpty())
+            return states;
+
+        for (int i = 0; i < missing.size(); i += DESCRIBE_CHUNK_SIZE) {
+            List<String> chunk = missing.subList(i, Math.min(i + DESCRIBE_CHUNK_SIZE, missing.size()));
+            // filter rather than list the IDs, so that one request that is gone doesn't fail the whole call
+            DescribeSpotInstanceRequestsRequest dsir = new DescribeSpotInstanceRequestsRequest().withFilters(
+                    new Filter("spot-instance-request-id").withValues(chunk));
+            for (String id : chunk) {
+                states.put(id, null);
+            }
+            for(SpotInstanceRequest sir : connect().describeSpotInstanceRequests(dsir).getSpotInstanceRequests()) {
+                states.put(sir.getSpotInstanceRequestId(), sir.getState());
             }
-            provisioningAmis.put(ami, Math.max(currentProvisioning - 1, 0));
         }
+        spotRequestStates = states;
+        return states;
     }
 
     @Override
     public Collection<PlannedNode> provision(Label label, int excessWorkload) {
         try {
             // Count number of pending executors from spot requests
+            List<EC2SpotSlave> offlineSpotSlaves = new ArrayList<EC2SpotSlave>();
+            List<String> spotRequestIds = new ArrayList<String>();
             for(EC2SpotSlave n : NodeIterator.nodes(EC2SpotSlave.class)){
                 // If the slave is online then it is already counted by Jenkins
                 // We only want to count potential additional Spot instance slaves
-                if (n.getComputer().isOffline()){
-                    DescribeSpotInstanceRequestsRequest dsir =
-                            new DescribeSpotInstanceRequestsRequest().withSpotInstanceRequestIds(n.getSpotInstanceRequestId());
-
-                    for(SpotInstanceRequest sir : connect().describeSpotInstanceRequests(dsir).getSpotInstanceRequests()) {
-                        // Count Spot requests that are open and still have a chance to be active
-                        // A request can be active and not yet registered as a slave. We check above
-                        // to ensure only unregistered slaves get counted
-                        if(sir.getState().equals("open") || sir.getState().equals("active")){
-                            excessWorkload -= n.getNumExecutors();
-                        }
-                    }
+                Computer c = n.toComputer();
+                if (name.equals(n.cloudName) && (c == null || c.isOffline())){
+                    offlineSpotSlaves.add(n);
+                    spotRequestIds.add(n.getSpotInstanceRequestId());
+                }
+            }
+            Map<String, String> spotRequestStates = getSpotRequestStates(spotRequestIds);
+            for (EC2SpotSlave n : offlineSpotSlaves) {
+                // Count Spot requests that are open and still have a chance to be active
+                // A request can be active and not yet registered as a slave. We check above
+                // to ensure only unregistered slaves get counted
+                String state = spotRequestStates.get(n.getSpotInstanceRequestId());
+                if ("open".equals(state) || "active".equals(state)){
+                    excessWorkload -= n.getNumExecutors();
                 }
             }
             LOGGER.log(Level.INFO, "Excess workload after pending Spot instances: " + excessWorkload);
@@ -384,41 +565,20 @@ public abstract class EC2Cloud extends Cloud {
             final SlaveTemplate t = getTemplate(label);
             int amiCap = t.getInstanceCap();
 
+            int number = 0;
             while (excessWorkload>0) {
 
                 if (!addProvisionedSlave(t.ami, amiCap)) {
                     break;
                 }
-
-                r.add(new PlannedNode(t.getDisplayName(),
-                        Computer.threadPoolForRemoting.submit(new Callable<Node>() {
-                            public Node call() throws Exception {
-                                // TODO: record the output somewhere
-                                try {
-                                    EC2AbstractSlave s = t.provision(new StreamTaskListener(System.out));
-                                    Hudson.getInstance().addNode(s);
-                                    // EC2 instances may have a long init script. If we declare
-                                    // the provisioning complete by returning without the connect
-                                    // operation, NodeProvisioner may decide that it still wants
-                                    // one more instance, because it sees that (1) all the slaves
-                                    // are offline (because it's still being launched) and
-                                    // (2) there's no capacity provisioned yet.
-                                    //
-                                    // deferring the completion of provisioning until the launch
-                                    // goes successful prevents this problem.
-                                    s.toComputer().connect(false).get();
-                                    return s;
-                                }
-                                finally {
-                                    decrementAmiSlaveProvision(t.ami);
-                                }
-                            }
-                        })
-                        ,t.getNumExecutors()));
-
+                number++;
                 excessWorkload -= t.getNumExecutors();
-
             }
+            if (number == 0) {
+                return r;
+            }
+
+            r.addAll(launch(t, number));
             return r;
         } catch (AmazonClientException e) {
             LOGGER.log(Level.WARNING,"Failed to count the # of live instances on EC2",e);
@@ -426,6 +586,78 @@ public abstract class EC2Cloud extends Cloud {
         }
     }
 
+    /**
+     * Launches the given number of slaves of the template, for which room has been made with
+     * {@link #addProvisionedSlave(String, int)}; the room is given back as each one connects or fails.
+     */
+    /*package*/ List<PlannedNode> launch(final SlaveTemplate t, int number) {
+        // launch the whole round with one batch, and hand out its slaves to the planned nodes
+        final int batchSize = number;
+        List<PlannedNode> r = new ArrayList<PlannedNode>();
+        final ListenableFuture<List<EC2AbstractSlave>> batch = MoreExecutors.listeningDecorator(Computer.threadPoolForRemoting).submit(new Callable<List<EC2AbstractSlave>>() {
+            public List<EC2AbstractSlave> call() throws Exception {
+                // TODO: record the output somewhere
+                return t.provision(new StreamTaskListener(System.out), batchSize);
+            }
+        });
+
+        for (int i = 0; i < number; i++) {
+            final int index = i;
+            final LaunchTimer timer = new LaunchTimer();
+            // no thread waits for the instance to boot: it is watched with the others by the inventory
+            ListenableFuture<EC2AbstractSlave> running = Futures.transform(batch, new AsyncFunction<List<EC2AbstractSlave>, EC2AbstractSlave>() {
+                public ListenableFuture<EC2AbstractSlave> apply(List<EC2AbstractSlave> slaves) throws Exception {
+                    if (index >= slaves.size()) {
+                        throw new AmazonClientException("EC2 launched only " + slaves.size() +
+                                " of the " + batchSize + " instances requested for " + t.getDisplayName());
+                    }
+                    final EC2AbstractSlave s = slaves.get(index);
+                    timer.mark(LaunchTimer.Phase.PROVISION);
+                    s.launchTimer = timer;
+                    Hudson.getInstance().addNode(s);
+                    if (!(s instanceof EC2OndemandSlave)) {
+                        // spot slaves have no instance until their request is fulfilled
+                        return Futures.immediateFuture(s);
+                    }
+                    return Futures.transform(getInventory().awaitSettled(s.getInstanceId()),
+                            new Function<Instance, EC2AbstractSlave>() {
+                                public EC2AbstractSlave apply(Instance instance) {
+                                    if (InstanceStateName.Running.toString().equals(instance.getState().getName()))
+                                        timer.mark(LaunchTimer.Phase.RUNNING);
+                                    return s;
+                                }
+                            });
+                }
+            }, Computer.threadPoolForRemoting);
+            ListenableFuture<Node> node = Futures.transform(running, new AsyncFunction<EC2AbstractSlave, Node>() {
+                public ListenableFuture<Node> apply(EC2AbstractSlave s) throws Exception {
+                    // EC2 instances may have a long init script. If we declare
+                    // the provisioning complete by returning without the connect
+                    // operation, NodeProvisioner may decide that it still wants
+                    // one more instance, because it sees that (1) all the slaves
+                    // are offline (because it's still being launched) and
+                    // (2) there's no capacity provisioned yet.
+                    //
+                    // deferring the completion of provisioning until the launch
+                    // goes successful prevents this problem.
+                    s.toComputer().connect(false).get();
+                    return Futures.<Node>immediateFuture(s);
+                }
+            }, Computer.threadPoolForRemoting);
+            Futures.addCallback(node, new FutureCallback<Node>() {
+                public void onSuccess(Node result) {
+                    decrementAmiSlaveProvision(t.ami);
+                }
+
+                public void onFailure(Throwable failure) {
+                    decrementAmiSlaveProvision(t.ami);
+                }
+            });
+            r.add(new PlannedNode(t.getDisplayName(), node, t.getNumExecutors()));
+        }
+        return r;
+    }
+
     @Override
     public boolean canProvision(Label label) {
         return getTemplate(label)!=null;
@@ -455,11 +687,12 @@ public abstract class EC2Cloud extends Cloud {
 
     /**
      * Connects to EC2 and returns {@link AmazonEC2}, which can then be used to communicate with EC2.
+     * Its calls are counted in {@link #getApiMetrics()}.
      */
     public synchronized AmazonEC2 connect() throws AmazonClientException {
         try {
             if (connection == null) {
-                connection = connect(createCredentialsProvider(), getEc2EndpointUrl());
+                connection = apiMetrics.wrap(connect(createCredentialsProvider(), getEc2EndpointUrl()));
             }
             return connection;
         } catch (IOException e) {
@@ -544,6 +777,22 @@ public abstract class EC2Cloud extends Cloud {
     }
 
 
+    /**
+     * Drops the remembered template lookups of all EC2 clouds whenever the Jenkins configuration is saved.
+     */
+    @Extension
+    public static final class TemplateIndexInvalidator extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (!(o instanceof Jenkins))
+                return;
+            for (Cloud c : ((Jenkins) o).clouds) {
+                if (c instanceof EC2Cloud)
+                    ((EC2Cloud) c).invalidateTemplateIndex();
+            }
+        }
+    }
+
     public static abstract class DescriptorImpl extends Descriptor<Cloud> {
         public InstanceType[] getInstanceTypes() {
             return InstanceType.values();
@@ -647,4 +896,19 @@ public abstract class EC2Cloud extends Cloud {
     }
 
     private static final Logger LOGGER = Logger.getLogger(EC2Cloud.class.getName());
+
+    /**
+     * Number of distinct labels whose template lookup we remember before starting over.
+     */
+    private static final int TEMPLATE_INDEX_SIZE = 4096;
+
+    /**
+     * Maximum number of IDs we put into a single describe request.
+     */
+    /*package*/ static final int DESCRIBE_CHUNK_SIZE = Integer.getInteger("jenkins.ec2.describeChunkSize", 200);
+
+    /**
+     * How long (in milliseconds) the spot request states looked up for the provisioning decision are reused.
+     */
+    private static final long SPOT_REQUEST_CACHE_TIME = Long.getLong("jenkins.ec2.spotRequestCacheTime", 10 * 1000);
 }
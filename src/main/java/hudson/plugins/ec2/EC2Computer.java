@@ -31,6 +31,7 @@ import hudson.slaves.SlaveComputer;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.logging.Logger;
 
 import org.kohsuke.stapler.HttpRedirect;
 import org.kohsuke.stapler.HttpResponse;
@@ -112,6 +113,13 @@ public class EC2Computer extends SlaveComputer {
         return ec2InstanceDescription = _describeInstance();
     }
 
+    /**
+     * Replaces the cached description with one obtained elsewhere, such as from {@link InstanceInventory}.
+     */
+    void setInstanceDescription(Instance instance) {
+        ec2InstanceDescription = instance;
+    }
+
     /**
      * Gets the current state of the instance.
      *
@@ -192,10 +200,60 @@ public class EC2Computer extends SlaveComputer {
 	public void onConnected(){
 		EC2AbstractSlave node = getNode();
 		if (node != null) {
+			finishLaunchTimer(true);
 			node.onConnected();
 		}
 	}
 
+    /**
+     * Ends the given phase of the launch of this slave, if it is being timed.
+     */
+    public void markLaunchPhase(LaunchTimer.Phase phase) {
+        EC2AbstractSlave node = getNode();
+        LaunchTimer timer = node == null ? null : node.launchTimer;
+        if (timer != null)
+            timer.mark(phase);
+    }
+
+    /**
+     * Starts timing the launch of this slave, unless the cloud already did when it provisioned it.
+     */
+    void startLaunchTimer() {
+        EC2AbstractSlave node = getNode();
+        if (node != null && node.launchTimer == null)
+            node.launchTimer = new LaunchTimer();
+    }
+
+    /**
+     * Stops timing the launch of this slave without counting it, as it was not attempted.
+     */
+    void discardLaunchTimer() {
+        EC2AbstractSlave node = getNode();
+        if (node != null)
+            node.launchTimer = null;
+    }
+
+    /**
+     * Stops timing the launch of this slave, counts it in the {@link LaunchMetrics} of its cloud,
+     * and logs how long each phase took.
+     */
+    void finishLaunchTimer(boolean online) {
+        EC2AbstractSlave node = getNode();
+        LaunchTimer timer = node == null ? null : node.launchTimer;
+        if (timer == null)
+            return;
+        if (online)
+            timer.mark(LaunchTimer.Phase.AGENT);
+        if (!timer.finish())
+            return;
+        node.launchTimer = null;
+        EC2Cloud cloud = node.getCloud();
+        if (cloud != null)
+            cloud.getLaunchMetrics().record(node.getTemplate(), timer, online);
+        LOGGER.info("EC2 launch timing: cloud=" + node.cloudName + " template=\"" + node.getNodeDescription()
+                + "\" instance=" + node.getInstanceId() + " outcome=" + (online ? "online" : "failed") + " " + timer);
+    }
+
     /* (non-Javadoc)
      * @see hudson.slaves.SlaveComputer#taskCompleted(hudson.model.Executor, hudson.model.Queue.Task, long)
      */
@@ -225,4 +283,6 @@ public class EC2Computer extends SlaveComputer {
             }
         }
     }
+
+    private static final Logger LOGGER = Logger.getLogger(EC2Computer.class.getName());
 }
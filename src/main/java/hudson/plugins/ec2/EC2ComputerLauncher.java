@@ -31,11 +31,13 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateName;
 import com.amazonaws.services.ec2.model.StartInstancesRequest;
 import com.amazonaws.services.ec2.model.StartInstancesResult;
 
@@ -48,32 +50,43 @@ import com.amazonaws.services.ec2.model.StartInstancesResult;
 public abstract class EC2ComputerLauncher extends ComputerLauncher {
     @Override
     public void launch(SlaveComputer _computer, TaskListener listener) {
+        EC2Computer computer = (EC2Computer)_computer;
+        computer.startLaunchTimer();
         try {
-            EC2Computer computer = (EC2Computer)_computer;
             PrintStream logger = listener.getLogger();
 
             final String baseMsg = "Node " + computer.getName() + "("+computer.getInstanceId()+")";
             String msg;
 
-            boolean continuePolling = true;
-            while(continuePolling) {
-                InstanceState state = computer.getState();
+            // describe once; from then on the instance is watched along with the other launching ones
+            computer.getState();
+            Instance instance = computer.describeInstance();
+            while(true) {
+                InstanceState state = InstanceState.find(instance.getState().getName());
                 switch (state) {
                     case PENDING:
                     case STOPPING:
-                        msg = baseMsg + " is still " + state.toString().toLowerCase() + ", waiting 5s";
-                        Thread.sleep(5000); // check every 5 secs
+                        msg = baseMsg + " is still " + state.toString().toLowerCase() + ", waiting";
                         // and report to system log and console
                         LOGGER.finest(msg);
                         logger.println(msg);
+                        instance = awaitSettled(computer);
                         break;
                     case RUNNING:
                         msg = baseMsg + " is ready";
                         LOGGER.finer(msg);
                         logger.println(msg);
-                        continuePolling = false;
-                        break;
+                        computer.markLaunchPhase(LaunchTimer.Phase.RUNNING);
+                        launch(computer, logger, instance);
+                        return;
                     case STOPPED:
+                        if (computer.getNode() != null && computer.getNode().isInWarmPool()) {
+                            msg = baseMsg + " is stopped in the warm pool, not starting it";
+                            LOGGER.info(msg);
+                            logger.println(msg);
+                            computer.discardLaunchTimer();
+                            return;
+                        }
                         msg = baseMsg + " is stopped, sending start request";
                         LOGGER.finer(msg);
                         logger.println(msg);
@@ -84,10 +97,12 @@ public abstract class EC2ComputerLauncher extends ComputerLauncher {
 
                         StartInstancesRequest siRequest = new StartInstancesRequest(instances);
                         StartInstancesResult siResult = ec2.startInstances(siRequest);
+                        computer.getCloud().getInventory().updateState(computer.getInstanceId(), InstanceStateName.Pending);
 
                         msg = baseMsg + ": sent start request, result: " + siResult;
-                        LOGGER.finer(baseMsg);
-                        logger.println(baseMsg);
+                        LOGGER.finer(msg);
+                        logger.println(msg);
+                        instance = awaitSettled(computer);
                         break;
                     case SHUTTING_DOWN:
                     case TERMINATED:
@@ -95,30 +110,50 @@ public abstract class EC2ComputerLauncher extends ComputerLauncher {
                         msg = baseMsg + " is terminated or terminating, aborting launch";
                         LOGGER.info(msg);
                         logger.println(msg);
+                        computer.discardLaunchTimer();
                         return;
                     default:
-                        msg = baseMsg + " is in an unknown state, retrying in 5s";
+                        msg = baseMsg + " is in an unknown state, retrying";
+                        LOGGER.finest(msg);
+                        logger.println(msg);
+                        instance = awaitSettled(computer);
                         break;
                 }
-
-                // check every 5 secs
-                Thread.sleep(5000);
-                // and report to system log and console
-                LOGGER.finest(msg);
-                logger.println(msg);
             }
-
-            launch(computer, logger, computer.describeInstance());
         } catch (AmazonClientException e) {
             e.printStackTrace(listener.error(e.getMessage()));
         } catch (IOException e) {
             e.printStackTrace(listener.error(e.getMessage()));
         } catch (InterruptedException e) {
             e.printStackTrace(listener.error(e.getMessage()));
+        } finally {
+            // once the agent is connected, EC2ComputerListener has already counted the launch,
+            // and a launch skipped on purpose has discarded its timer
+            if (computer.getChannel() == null)
+                computer.finishLaunchTimer(false);
         }
 
     }
 
+    /**
+     * Waits for the instance to get out of a transitional state. The instances of the cloud are polled
+     * together by {@link InstanceInventory#awaitSettled(String)}, so waiting costs neither API calls
+     * of its own nor more than the parked thread, which {@link ComputerLauncher#launch} has to hold
+     * until the channel is up.
+     */
+    private Instance awaitSettled(EC2Computer computer) throws InterruptedException {
+        try {
+            Instance instance = computer.getCloud().getInventory().awaitSettled(computer.getInstanceId()).get();
+            computer.setInstanceDescription(instance);
+            return instance;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AmazonClientException)
+                throw (AmazonClientException) cause;
+            throw new AmazonClientException("Failed to wait for " + computer.getInstanceId(), cause);
+        }
+    }
+
     /**
      * Stage 2 of the launch. Called after the EC2 instance comes up.
      */
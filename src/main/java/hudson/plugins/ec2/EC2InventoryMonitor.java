@@ -0,0 +1,64 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * Periodically rebuilds the {@link InstanceInventory} of every {@link EC2Cloud},
+ * and refreshes the {@link AmiMetadataCache} entries of its templates before they expire.
+ */
+@Extension
+public class EC2InventoryMonitor extends AsyncPeriodicWork {
+
+    private Long recurrencePeriod;
+
+    public EC2InventoryMonitor() {
+        super("EC2 instance inventory monitor");
+        recurrencePeriod = Long.getLong("jenkins.ec2.inventoryRefreshPeriod", TimeUnit.MINUTES.toMillis(1));
+        LOGGER.log(Level.FINE, "EC2 inventory refresh period is {0}ms", recurrencePeriod);
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return recurrencePeriod;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof EC2Cloud) {
+                EC2Cloud ec2Cloud = (EC2Cloud) cloud;
+                try {
+                    ec2Cloud.getInventory().refresh();
+                } catch (AmazonClientException e) {
+                    LOGGER.log(Level.WARNING, "Failed to refresh the EC2 instance inventory of " + cloud.name, e);
+                }
+                try {
+                    Set<String> amis = new HashSet<String>();
+                    for (SlaveTemplate t : ec2Cloud.getTemplates()) {
+                        amis.add(t.ami);
+                    }
+                    ec2Cloud.getAmiMetadata().refreshExpiring(amis);
+                } catch (AmazonClientException e) {
+                    LOGGER.log(Level.WARNING, "Failed to refresh the AMI descriptions of " + cloud.name, e);
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(EC2InventoryMonitor.class.getName());
+
+}
@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import hudson.slaves.NodeProvisioner.PlannedNode;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * Launches slaves ahead of demand so that each template has at least its
+ * {@link SlaveTemplate#minIdleExecutors} idle executors while its schedule applies, and the first builds
+ * after a quiet period don't wait for an instance to boot. {@link EC2RetentionStrategy} in turn doesn't
+ * idle out the slaves needed to stay at that number.
+ */
+@Extension
+public class EC2MinIdleReconciler extends AsyncPeriodicWork {
+
+    private Long recurrencePeriod;
+
+    /* Slaves launched for each template and not connected yet; a template is left alone until they are */
+    private final Map<SlaveTemplate, List<PlannedNode>> launching = new WeakHashMap<SlaveTemplate, List<PlannedNode>>();
+
+    public EC2MinIdleReconciler() {
+        super("EC2 minimum idle executors reconciler");
+        recurrencePeriod = Long.getLong("jenkins.ec2.minIdleCheckPeriod", TimeUnit.MINUTES.toMillis(1));
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return recurrencePeriod;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof EC2Cloud) {
+                for (SlaveTemplate t : ((EC2Cloud) cloud).getTemplates()) {
+                    try {
+                        reconcile((EC2Cloud) cloud, t);
+                    } catch (AmazonClientException e) {
+                        LOGGER.log(Level.WARNING, "Failed to launch the minimum idle executors of " + t.getDisplayName(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized void reconcile(EC2Cloud cloud, SlaveTemplate t) throws AmazonClientException {
+        int floor = t.getMinIdleExecutorsNow();
+        if (floor == 0)
+            return;
+
+        List<PlannedNode> previous = launching.get(t);
+        if (previous != null) {
+            for (PlannedNode p : previous) {
+                if (!p.future.isDone())
+                    return;
+            }
+            launching.remove(t);
+        }
+
+        int missing = floor - t.countIdleExecutors();
+        if (missing <= 0)
+            return;
+
+        int number = 0;
+        for (int executors = 0; executors < missing && cloud.addProvisionedSlave(t.ami, t.getInstanceCap()); executors += t.getNumExecutors()) {
+            number++;
+        }
+        if (number == 0)
+            return;
+
+        LOGGER.info("Launching " + number + " slave(s) of " + t.getDisplayName() + " for its " + floor + " minimum idle executors");
+        launching.put(t, cloud.launch(t, number));
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(EC2MinIdleReconciler.class.getName());
+}
@@ -55,18 +55,8 @@ public final class EC2OndemandSlave extends EC2AbstractSlave {
      * Terminates the instance in EC2.
      */
     public void terminate() {
-        if (!isAlive(true)) {
-            /* The node has been killed externally, so we've nothing to do here */
-            LOGGER.info("EC2 instance already terminated: " + getInstanceId());
-        }
-        else {
-            terminateInstance();
-        }
-        try {
-            Jenkins.getInstance().removeNode(this);
-        } catch (IOException e) {
-            LOGGER.log(Level.WARNING,"Failed to terminate EC2 instance: "+getInstanceId(),e);
-        }
+        // no need to check whether it's still alive: terminating a terminated instance does nothing
+        removeOnceTerminated(terminateInstance());
     }
 
     @Override
@@ -36,10 +36,10 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Key;
 import java.security.PrivateKey;
-import java.security.PublicKey;
 import java.security.Security;
 
 import org.apache.commons.codec.binary.Hex;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openssl.PEMReader;
 import org.bouncycastle.openssl.PasswordFinder;
 
@@ -55,8 +55,18 @@ import com.amazonaws.services.ec2.model.KeyPairInfo;
  * @author Kohsuke Kawaguchi
  */
 public class EC2PrivateKey {
+    static {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null)
+            Security.addProvider(new BouncyCastleProvider());
+    }
+
     private final Secret privateKey;
 
+    /* Fingerprints derived from the key; null if the PEM holds no key pair */
+    private transient String fingerprint;
+    private transient String publicFingerprint;
+    private transient boolean parsed;
+
     EC2PrivateKey(String privateKey) {
         this.privateKey = Secret.fromString(privateKey.trim());
     }
@@ -65,35 +75,25 @@ public class EC2PrivateKey {
     	return privateKey.getPlainText();
     }
 
-    /**
-     * Obtains the fingerprint of the key in the "ab:cd:ef:...:12" format.
-     */
     /**
      * Obtains the fingerprint of the key in the "ab:cd:ef:...:12" format.
      */
     public String getFingerprint() throws IOException {
-        Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
-        Reader r = new BufferedReader(new StringReader(privateKey.toString()));
-        PEMReader pem = new PEMReader(r,new PasswordFinder() {
-            public char[] getPassword() {
-                throw PRIVATE_KEY_WITH_PASSWORD;
-            }
-        });
-
-        try {
-            KeyPair pair = (KeyPair) pem.readObject();
-            if(pair==null)  return null;
-            PrivateKey key = pair.getPrivate();
-            return digest(key);
-        } catch (RuntimeException e) {
-            if (e==PRIVATE_KEY_WITH_PASSWORD)
-                throw new IOException("This private key is password protected, which isn't supported yet");
-            throw e;
-        }
+        parse();
+        return fingerprint;
     }
 
     public String getPublicFingerprint() throws IOException {
-        Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+        parse();
+        return publicFingerprint;
+    }
+
+    /**
+     * Computes both fingerprints from a single read of the PEM. The key never changes, so this only happens once.
+     */
+    private synchronized void parse() throws IOException {
+        if (parsed)
+            return;
         Reader r = new BufferedReader(new StringReader(privateKey.toString()));
         PEMReader pem = new PEMReader(r,new PasswordFinder() {
             public char[] getPassword() {
@@ -103,9 +103,11 @@ public class EC2PrivateKey {
 
         try {
             KeyPair pair = (KeyPair) pem.readObject();
-            if(pair==null)  return null;
-            PublicKey key = pair.getPublic();
-            return digestOpt(key,"MD5");
+            if(pair!=null) {
+                fingerprint = digest(pair.getPrivate());
+                publicFingerprint = digestOpt(pair.getPublic(),"MD5");
+            }
+            parsed = true;
         } catch (RuntimeException e) {
             if (e==PRIVATE_KEY_WITH_PASSWORD)
                 throw new IOException("This private key is password protected, which isn't supported yet");
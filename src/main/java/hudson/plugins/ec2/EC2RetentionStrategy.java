@@ -96,7 +96,7 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2Computer> {
                 // TODO: really think about the right strategy here, see JENKINS-23792
                 if (idleMilliseconds > TimeUnit2.MINUTES.toMillis(idleTerminationMinutes)) {
                     LOGGER.info("Idle timeout of "+c.getName() + " after " + TimeUnit2.MILLISECONDS.toMinutes(idleMilliseconds) + " idle minutes");
-                    c.getNode().idleTimeout();
+                    idleTimeout(c);
                 }
             } else {
                 final long uptime;
@@ -112,7 +112,7 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2Computer> {
                 // See JENKINS-23821
                 if (freeSecondsLeft <= (Math.abs(idleTerminationMinutes*60))) {
                     LOGGER.info("Idle timeout of "+c.getName()+" after " + TimeUnit2.MILLISECONDS.toMinutes(idleMilliseconds) + " idle minutes, with " + TimeUnit2.MILLISECONDS.toMinutes(freeSecondsLeft) + " minutes remaining in billing period");
-                    c.getNode().idleTimeout();
+                    idleTimeout(c);
                 }
             }
         }
@@ -120,10 +120,38 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2Computer> {
     }
 
     /**
-     * Try to connect to it ASAP.
+     * Retires the slave, unless its template needs it to keep its minimum idle executors.
+     */
+    private void idleTimeout(EC2Computer c) {
+        EC2AbstractSlave node = c.getNode();
+        SlaveTemplate t = node.getTemplate();
+        if (t == null) {
+            node.idleTimeout();
+            return;
+        }
+        // one slave of the template at a time, so that they don't all count on each other to stay
+        synchronized (t) {
+            int floor = t.getMinIdleExecutorsNow();
+            if (floor > 0 && t.countIdleExecutors() - c.countIdle() < floor) {
+                LOGGER.fine("Keeping " + c.getName() + " for the " + floor + " minimum idle executors of " + t.getDisplayName());
+                return;
+            }
+            node.idleTimeout();
+        }
+    }
+
+    /**
+     * Try to connect to it ASAP, unless it is in the warm pool.
      */
     @Override
     public void start(EC2Computer c) {
+        EC2AbstractSlave node = c.getNode();
+        if (node != null && node.isInWarmPool()) {
+            // stays stopped until the template draws it from the pool, which reconnects it
+            LOGGER.info("Not connecting " + c.getName() + ", which is in the warm pool");
+            c.setTemporarilyOffline(true, EC2WarmPoolMaintainer.WARM_POOL_OFFLINE_CAUSE);
+            return;
+        }
 		LOGGER.info("Start requested for " + c.getName());
         c.connect(true);
     }
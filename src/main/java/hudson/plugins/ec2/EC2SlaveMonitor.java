@@ -2,10 +2,19 @@ package hudson.plugins.ec2;
 
 import hudson.Extension;
 import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
 import hudson.model.TaskListener;
 import hudson.model.Node;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -13,8 +22,16 @@ import java.util.logging.Logger;
 import jenkins.model.Jenkins;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
 
 /**
+ * Checks that the instances of all EC2 slaves are still alive, describing them in chunks per cloud
+ * rather than one by one.
+ *
  * @author Bruno Meneguello
  */
 @Extension
@@ -35,22 +52,66 @@ public class EC2SlaveMonitor extends AsyncPeriodicWork {
 
     @Override
     protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        Map<EC2Cloud, List<EC2AbstractSlave>> slavesByCloud = new LinkedHashMap<EC2Cloud, List<EC2AbstractSlave>>();
         for (Node node : Jenkins.getInstance().getNodes()) {
             if (node instanceof EC2AbstractSlave) {
                 final EC2AbstractSlave ec2Slave = (EC2AbstractSlave) node;
-                try {
-                    if (!ec2Slave.isAlive(true)) {
-                        LOGGER.info("EC2 instance is dead: " + ec2Slave.getInstanceId());
-                        ec2Slave.terminate();
-                    }
-                } catch (AmazonClientException e) {
-                    LOGGER.info("EC2 instance is dead and failed to terminate: " + ec2Slave.getInstanceId());
-                    removeNode(ec2Slave);
+                EC2Cloud cloud = ec2Slave.getCloud();
+                String instanceId = ec2Slave.getInstanceId();
+                if (cloud == null || instanceId == null || instanceId.length() == 0) {
+                    // nothing to describe in bulk, let the slave find out by itself
+                    checkAlive(ec2Slave, true);
+                    continue;
+                }
+                List<EC2AbstractSlave> slaves = slavesByCloud.get(cloud);
+                if (slaves == null) {
+                    slavesByCloud.put(cloud, slaves = new ArrayList<EC2AbstractSlave>());
                 }
+                slaves.add(ec2Slave);
+            }
+        }
+
+        // describe all chunks of all clouds in parallel, then check the slaves chunk by chunk
+        List<DescribeChunk> chunks = new ArrayList<DescribeChunk>();
+        for (Map.Entry<EC2Cloud, List<EC2AbstractSlave>> e : slavesByCloud.entrySet()) {
+            List<EC2AbstractSlave> slaves = e.getValue();
+            for (int i = 0; i < slaves.size(); i += EC2Cloud.DESCRIBE_CHUNK_SIZE) {
+                DescribeChunk chunk = new DescribeChunk(e.getKey(),
+                        slaves.subList(i, Math.min(i + EC2Cloud.DESCRIBE_CHUNK_SIZE, slaves.size())));
+                chunk.future = Computer.threadPoolForRemoting.submit(chunk);
+                chunks.add(chunk);
+            }
+        }
+
+        for (DescribeChunk chunk : chunks) {
+            Map<String, Instance> instances;
+            try {
+                instances = chunk.future.get();
+            } catch (ExecutionException x) {
+                // we don't know whether these are alive, so leave them alone until the next sweep
+                LOGGER.log(Level.WARNING, "Failed to describe the instances of " + chunk.slaves.size() + " EC2 slaves", x.getCause());
+                continue;
+            }
+            long fetchTime = System.currentTimeMillis();
+            for (EC2AbstractSlave ec2Slave : chunk.slaves) {
+                ec2Slave.updateLiveInstanceData(instances.get(ec2Slave.getInstanceId()), fetchTime);
+                checkAlive(ec2Slave, false);
             }
         }
     }
 
+    private void checkAlive(EC2AbstractSlave ec2Slave, boolean force) {
+        try {
+            if (!ec2Slave.isAlive(force)) {
+                LOGGER.info("EC2 instance is dead: " + ec2Slave.getInstanceId());
+                ec2Slave.terminate();
+            }
+        } catch (AmazonClientException e) {
+            LOGGER.info("EC2 instance is dead and failed to terminate: " + ec2Slave.getInstanceId());
+            removeNode(ec2Slave);
+        }
+    }
+
     private void removeNode(EC2AbstractSlave ec2Slave) {
         try {
             Jenkins.getInstance().removeNode(ec2Slave);
@@ -59,6 +120,51 @@ public class EC2SlaveMonitor extends AsyncPeriodicWork {
         }
     }
 
+    /**
+     * Describes the instances of one chunk of slaves of a cloud with a single request.
+     */
+    private static final class DescribeChunk implements Callable<Map<String, Instance>> {
+        private final EC2Cloud cloud;
+        private final List<EC2AbstractSlave> slaves;
+        private final List<String> instanceIds = new ArrayList<String>();
+
+        /* the pending call, once submitted */
+        private Future<Map<String, Instance>> future;
+
+        DescribeChunk(EC2Cloud cloud, List<EC2AbstractSlave> slaves) {
+            this.cloud = cloud;
+            this.slaves = slaves;
+            for (EC2AbstractSlave s : slaves) {
+                instanceIds.add(s.getInstanceId());
+            }
+        }
+
+        public Map<String, Instance> call() throws AmazonClientException {
+            // filter rather than list the IDs, so that one instance that is gone doesn't fail the whole chunk
+            DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(
+                    new Filter("instance-id").withValues(instanceIds));
+            Map<String, Instance> instances = new HashMap<String, Instance>();
+            long describedAt = System.currentTimeMillis();
+            DescribeInstancesResult result = cloud.connect().describeInstances(request);
+            while (true) {
+                for (Reservation r : result.getReservations()) {
+                    for (Instance i : r.getInstances()) {
+                        instances.put(i.getInstanceId(), i);
+                    }
+                }
+                if (result.getNextToken() == null)
+                    break;
+                result = cloud.connect().describeInstances(request.withNextToken(result.getNextToken()));
+            }
+            List<String> missing = new ArrayList<String>(instanceIds);
+            missing.removeAll(instances.keySet());
+            cloud.getInventory().update(instances.values(), describedAt);
+            // so that the slaves aren't served the stale inventory entries of these as alive
+            cloud.getInventory().markGone(missing, describedAt);
+            return instances;
+        }
+    }
+
     private static final Logger LOGGER = Logger.getLogger(EC2SlaveMonitor.class.getName());
 
 }
@@ -10,17 +10,17 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import jenkins.model.Jenkins;
-
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.model.CancelSpotInstanceRequestsRequest;
 import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
 import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
 import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 public final class EC2SpotSlave extends EC2AbstractSlave {
 
@@ -42,43 +42,26 @@ public final class EC2SpotSlave extends EC2AbstractSlave {
 	/**
 	 * Cancel the spot request for the instance.
 	 * Terminate the instance if it is up.
-	 * Remove the slave from Jenkins.
+	 * Remove the slave from Jenkins once both went through.
 	 */
 	@Override
 	public void terminate() {
-		// Cancel the spot request
-		AmazonEC2 ec2 = getCloud().connect();
+		// Cancel the spot request; the queue sends it ahead of the terminate
+		ListenableFuture<Boolean> cancelled = getCloud().getShutdownQueue().cancelSpotRequest(spotInstanceRequestId);
 
+		// Terminate the slave if it is running
+		ListenableFuture<Boolean> terminated = Futures.immediateFuture(true);
 		String instanceId = getInstanceId();
-		List<String> requestIds = Collections.singletonList(spotInstanceRequestId);
-		CancelSpotInstanceRequestsRequest cancelRequest = new CancelSpotInstanceRequestsRequest(requestIds);
-		try{
-			ec2.cancelSpotInstanceRequests(cancelRequest);
-			LOGGER.info("Canceled Spot request: "+ spotInstanceRequestId);
-
-			// Terminate the slave if it is running
-			if (instanceId != null && !instanceId.equals("")){
-				if (!isAlive(true)) {
-					/* The node has been killed externally, so we've nothing to do here */
-					LOGGER.info("EC2 instance already terminated: "+instanceId);
-				} else{
-					terminateInstance();
-				}
-			}
-
-		} catch (AmazonServiceException e){
-			// Spot request is no longer valid
-			LOGGER.log(Level.WARNING, "Failed to terminated instance and cancel Spot request: " + spotInstanceRequestId, e);
-		} catch (AmazonClientException e){
-			// Spot request is no longer valid
-			LOGGER.log(Level.WARNING, "Failed to terminated instance and cancel Spot request: " + spotInstanceRequestId, e);
+		if (instanceId != null && !instanceId.equals("")){
+			terminated = terminateInstance();
 		}
 
-		try{
-			Jenkins.getInstance().removeNode(this);
-		} catch (IOException e){
-			LOGGER.log(Level.WARNING,"Failed to remove slave: "+name, e);
-		}
+		// a request left open would launch an instance nothing tracks, so the slave stays until both went through
+		removeOnceTerminated(Futures.transform(Futures.allAsList(cancelled, terminated), new Function<List<Boolean>, Boolean>() {
+			public Boolean apply(List<Boolean> done) {
+				return !done.contains(false);
+			}
+		}));
 	}
 
 	/**
@@ -45,6 +45,11 @@ public class EC2Tag extends AbstractDescribableImpl<EC2Tag>
    */
    public static final String TAG_NAME_JENKINS_SLAVE_TYPE = "jenkins_slave_type";
 
+   /**
+   * Tag name marking the instances of the warm pool of a template, see {@link SlaveTemplate#warmPoolSize}.
+   */
+   public static final String TAG_NAME_JENKINS_WARM_POOL = "jenkins_warm_pool";
+
    @DataBoundConstructor
    public EC2Tag(String name, String value) {
       this.name = name;
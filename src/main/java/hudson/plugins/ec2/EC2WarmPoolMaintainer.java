@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import hudson.slaves.OfflineCause;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * Keeps the warm pools of the templates topped up: launches instances for them, lets the launcher
+ * initialize each one (init script, slave.jar) while it is kept from taking builds, and stops it.
+ * {@link SlaveTemplate#provision(TaskListener, int)} then restarts these before launching anything new.
+ */
+@Extension
+public class EC2WarmPoolMaintainer extends AsyncPeriodicWork {
+
+    /**
+     * Keeps the slaves of the warm pool from taking builds until they are drawn from it.
+     */
+    static final OfflineCause WARM_POOL_OFFLINE_CAUSE = new OfflineCause.ByCLI("Initializing for the warm pool");
+
+    private Long recurrencePeriod;
+
+    /* AMIs already warned about not booting from EBS */
+    private final Set<String> refusedAmis = new HashSet<String>();
+
+    public EC2WarmPoolMaintainer() {
+        super("EC2 warm pool maintainer");
+        recurrencePeriod = Long.getLong("jenkins.ec2.warmPoolCheckPeriod", TimeUnit.MINUTES.toMillis(1));
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return recurrencePeriod;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof EC2Cloud) {
+                for (SlaveTemplate t : ((EC2Cloud) cloud).getTemplates()) {
+                    if (t.warmPoolSize > 0 && t.spotConfig == null) {
+                        try {
+                            if (!t.isEbsBacked()) {
+                                // an instance store instance can't be stopped, it would be kept running instead
+                                if (refusedAmis.add(t.ami))
+                                    LOGGER.warning("Not keeping a warm pool for " + t.getDisplayName()
+                                            + ": " + t.ami + " doesn't boot from EBS, so its instances can't be stopped");
+                                continue;
+                            }
+                            topUp((EC2Cloud) cloud, t, listener);
+                        } catch (AmazonClientException e) {
+                            LOGGER.log(Level.WARNING, "Failed to top up the warm pool of " + t.getDisplayName(), e);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void topUp(EC2Cloud cloud, SlaveTemplate t, TaskListener listener) throws AmazonClientException, IOException {
+        int missing = t.warmPoolSize - t.countWarmPool();
+        if (missing <= 0)
+            return;
+
+        // the warm instances count against the caps while they run, like any other
+        int number = 0;
+        while (number < missing && cloud.addProvisionedSlave(t.ami, t.getInstanceCap())) {
+            number++;
+        }
+        if (number == 0)
+            return;
+
+        LOGGER.info("Adding " + number + " instance(s) to the warm pool of " + t.getDisplayName());
+        List<EC2AbstractSlave> slaves;
+        try {
+            slaves = t.provisionWarm(listener, number);
+        } finally {
+            // by now the inventory counts the instances that were launched
+            for (int i = 0; i < number; i++) {
+                cloud.decrementAmiSlaveProvision(t.ami);
+            }
+        }
+        for (final EC2AbstractSlave s : slaves) {
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    warm(s);
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds the slave, lets it launch once, and stops it; terminates it if it doesn't come up or stop.
+     */
+    private void warm(EC2AbstractSlave s) {
+        try {
+            Jenkins.getInstance().addNode(s);
+            Computer c = s.toComputer();
+            c.setTemporarilyOffline(true, WARM_POOL_OFFLINE_CAUSE);
+            c.connect(false).get();
+            if (c.getChannel() != null) {
+                LOGGER.info("Initialized " + s.getInstanceId() + " for the warm pool, stopping it");
+                if (s.stop().get())
+                    return;
+                // left running, it would be counted in the pool and never used nor reaped
+                LOGGER.warning("Failed to stop " + s.getInstanceId() + " for the warm pool, terminating it");
+            } else {
+                LOGGER.warning("Failed to initialize " + s.getInstanceId() + " for the warm pool");
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to initialize " + s.getInstanceId() + " for the warm pool", e);
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Failed to initialize " + s.getInstanceId() + " for the warm pool", e);
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Failed to initialize " + s.getInstanceId() + " for the warm pool", e);
+        }
+        s.terminate();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(EC2WarmPoolMaintainer.class.getName());
+}
@@ -0,0 +1,465 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2;
+
+import hudson.plugins.ec2.util.NamedThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Snapshot of the instances an {@link EC2Cloud} can see, together with per-AMI counters of
+ * the slaves that are pending or running.
+ *
+ * <p>
+ * The snapshot is rebuilt in the background by {@link EC2InventoryMonitor} and kept current in between
+ * by the run/start/stop/terminate calls this plugin makes itself, so that the instance cap checks
+ * don't have to walk every reservation of the account.
+ */
+public class InstanceInventory {
+    /**
+     * Key of the counter that tracks the slaves of all AMIs.
+     */
+    private static final String ALL_AMIS = "";
+
+    private final EC2Cloud cloud;
+
+    /* Current view; replaced as a whole on refresh, updated in place in between */
+    private volatile Snapshot snapshot = new Snapshot();
+
+    /* Local changes made while a refresh was in flight, replayed on top of its result */
+    private final Map<String, Instance> localChanges = new HashMap<String, Instance>();
+
+    /* When instances were last described as gone; older descriptions of them are ignored */
+    private final Map<String, Long> gone = new HashMap<String, Long>();
+
+    private volatile long lastRefreshTime;
+
+    /* Serializes refreshes so that each one replays exactly the changes made while it ran */
+    private final Object refreshLock = new Object();
+
+    /* Instances to describe with the next background refresh */
+    private final Queue<String> pendingRefreshes = new ConcurrentLinkedQueue<String>();
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+
+    /* Instances someone waits on to leave the pending or stopping state */
+    private final ConcurrentHashMap<String, Watch> watches = new ConcurrentHashMap<String, Watch>();
+    private final AtomicBoolean pollScheduled = new AtomicBoolean();
+
+    public InstanceInventory(EC2Cloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Number of pending or running slaves using the given AMI, or of all slaves if the AMI is null.
+     * Loads the snapshot if it was never loaded.
+     */
+    public int countSlaves(String ami) throws AmazonClientException {
+        if (lastRefreshTime == 0) {
+            refresh();
+        }
+        AtomicInteger n = snapshot.counters.get(ami == null ? ALL_AMIS : ami);
+        return n == null ? 0 : n.get();
+    }
+
+    /**
+     * Last known description of the given instance, or null if the inventory doesn't know it.
+     */
+    public Instance getInstance(String instanceId) {
+        if (instanceId == null)
+            return null;
+        return snapshot.instances.get(instanceId);
+    }
+
+    /**
+     * Last known descriptions of all the instances the inventory knows, unmodifiable.
+     */
+    public Collection<Instance> getInstances() {
+        return Collections.unmodifiableCollection(snapshot.instances.values());
+    }
+
+    /**
+     * Milliseconds since the snapshot was last rebuilt from EC2.
+     */
+    public long getAge() {
+        return System.currentTimeMillis() - lastRefreshTime;
+    }
+
+    /**
+     * Rebuilds the snapshot from a single describe-instances call.
+     */
+    public void refresh() throws AmazonClientException {
+        synchronized (refreshLock) {
+            _refresh();
+        }
+    }
+
+    private void _refresh() throws AmazonClientException {
+        final long startTime = System.currentTimeMillis();
+        synchronized (this) {
+            localChanges.clear();
+        }
+
+        DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(
+                new Filter("instance-state-name").withValues(
+                        InstanceStateName.Pending.toString(), InstanceStateName.Running.toString(),
+                        InstanceStateName.ShuttingDown.toString(), InstanceStateName.Stopping.toString(),
+                        InstanceStateName.Stopped.toString()));
+        Snapshot fresh = new Snapshot();
+        DescribeInstancesResult result = cloud.connect().describeInstances(request);
+        while (true) {
+            for (Reservation r : result.getReservations()) {
+                for (Instance i : r.getInstances()) {
+                    fresh.put(i);
+                }
+            }
+            if (result.getNextToken() == null)
+                break;
+            result = cloud.connect().describeInstances(request.withNextToken(result.getNextToken()));
+        }
+
+        synchronized (this) {
+            for (Iterator<Instance> it = localChanges.values().iterator(); it.hasNext();) {
+                fresh.put(it.next());
+            }
+            localChanges.clear();
+            for (Iterator<Map.Entry<String, Long>> it = gone.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, Long> e = it.next();
+                if (e.getValue() >= startTime) {
+                    // found gone after this refresh started
+                    fresh.remove(e.getKey());
+                } else {
+                    // this refresh is more recent
+                    it.remove();
+                }
+            }
+            snapshot = fresh;
+            lastRefreshTime = startTime;
+        }
+        LOGGER.log(Level.FINE, "Refreshed EC2 instance inventory of {0}: {1} instances, {2} slaves",
+                new Object[] {cloud.name, fresh.instances.size(), fresh.counters.get(ALL_AMIS)});
+        resolveWatches();
+    }
+
+    /**
+     * Asks for the given instance to be described again in the background. Requests made close together
+     * are described with one call per chunk of {@link EC2Cloud#DESCRIBE_CHUNK_SIZE} instances.
+     * The result shows up in {@link #getInstance(String)}.
+     */
+    public void refreshLater(String instanceId) {
+        pendingRefreshes.add(instanceId);
+        if (refreshScheduled.compareAndSet(false, true)) {
+            REFRESHER.schedule(new Runnable() {
+                public void run() {
+                    refreshScheduled.set(false);
+                    refreshPending();
+                }
+            }, REFRESH_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void refreshPending() {
+        List<String> instanceIds = new ArrayList<String>();
+        for (String id; (id = pendingRefreshes.poll()) != null;) {
+            if (!instanceIds.contains(id))
+                instanceIds.add(id);
+        }
+        for (int i = 0; i < instanceIds.size(); i += EC2Cloud.DESCRIBE_CHUNK_SIZE) {
+            List<String> chunk = instanceIds.subList(i, Math.min(i + EC2Cloud.DESCRIBE_CHUNK_SIZE, instanceIds.size()));
+            // filter rather than list the IDs, so that one instance that is gone doesn't fail the whole chunk
+            DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(
+                    new Filter("instance-id").withValues(chunk));
+            try {
+                long describedAt = System.currentTimeMillis();
+                DescribeInstancesResult result = cloud.connect().describeInstances(request);
+                while (true) {
+                    for (Reservation r : result.getReservations()) {
+                        update(r.getInstances(), describedAt);
+                    }
+                    if (result.getNextToken() == null)
+                        break;
+                    result = cloud.connect().describeInstances(request.withNextToken(result.getNextToken()));
+                }
+            } catch (AmazonClientException e) {
+                LOGGER.log(Level.WARNING, "Failed to describe " + chunk.size() + " instances of " + cloud.name, e);
+            }
+        }
+        resolveWatches();
+    }
+
+    /**
+     * Waits for the given instance to leave the pending or stopping state, without tying up a thread.
+     * All the instances waited on are described together every {@link #POLL_PERIOD} milliseconds, and
+     * the future completes with the first description in which the instance is in any other state.
+     * It fails if the instance can't be found for {@link #NOT_FOUND_TIMEOUT} milliseconds.
+     *
+     * <p>
+     * Callers waiting on the same instance share the future, so it must not be cancelled.
+     */
+    public ListenableFuture<Instance> awaitSettled(String instanceId) {
+        Watch w = new Watch();
+        while (true) {
+            Watch existing = watches.putIfAbsent(instanceId, w);
+            if (existing == null)
+                break;
+            if (!existing.future.isDone())
+                return existing.future;
+            watches.remove(instanceId, existing);
+        }
+        schedulePoll();
+        return w.future;
+    }
+
+    private void schedulePoll() {
+        if (pollScheduled.compareAndSet(false, true)) {
+            REFRESHER.schedule(new Runnable() {
+                public void run() {
+                    pollScheduled.set(false);
+                    pendingRefreshes.addAll(watches.keySet());
+                    refreshPending();
+                    if (!watches.isEmpty()) {
+                        schedulePoll();
+                    }
+                }
+            }, POLL_PERIOD, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Completes the futures of the instances that have settled according to the snapshot, outside of
+     * any lock as they may have listeners that run right away.
+     */
+    private void resolveWatches() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Watch> e : watches.entrySet()) {
+            Watch w = e.getValue();
+            Instance i = snapshot.instances.get(e.getKey());
+            if (i != null) {
+                InstanceStateName state = InstanceStateName.fromValue(i.getState().getName());
+                if (state != InstanceStateName.Pending && state != InstanceStateName.Stopping
+                        && watches.remove(e.getKey(), w)) {
+                    w.future.set(i);
+                }
+            } else if (now - w.since > NOT_FOUND_TIMEOUT && watches.remove(e.getKey(), w)) {
+                w.future.setException(new AmazonClientException("Instance " + e.getKey() + " of " + cloud.name
+                        + " not found for " + (NOT_FOUND_TIMEOUT / 1000) + " seconds"));
+            }
+        }
+    }
+
+    /**
+     * Records instances we have just launched or re-described.
+     */
+    public synchronized void update(Collection<Instance> instances) {
+        update(instances, System.currentTimeMillis());
+    }
+
+    /**
+     * Records instances described at the given time, except those found gone since.
+     */
+    public synchronized void update(Collection<Instance> instances, long describedAt) {
+        for (Instance i : instances) {
+            Long goneAt = gone.get(i.getInstanceId());
+            if (goneAt != null) {
+                if (goneAt >= describedAt)
+                    continue;
+                gone.remove(i.getInstanceId());
+            }
+            update(i);
+        }
+    }
+
+    /**
+     * Records an instance we have just launched or re-described.
+     */
+    public synchronized void update(Instance i) {
+        snapshot.put(i);
+        localChanges.put(i.getInstanceId(), i);
+    }
+
+    /**
+     * Records that EC2 no longer knew the given instances when described at the given time, so that
+     * descriptions of them made before then, by a refresh in flight for example, are not served again.
+     */
+    public synchronized void markGone(Collection<String> instanceIds, long describedAt) {
+        for (String id : instanceIds) {
+            snapshot.remove(id);
+            localChanges.remove(id);
+            gone.put(id, describedAt);
+        }
+    }
+
+    /**
+     * Records a state transition we have just requested, such as a start, stop or terminate.
+     * Does nothing if the inventory doesn't know the instance yet; the next refresh will pick it up.
+     */
+    public synchronized void updateState(String instanceId, InstanceStateName state) {
+        Instance i = snapshot.instances.get(instanceId);
+        if (i == null)
+            return;
+        snapshot.remove(instanceId);
+        update(withState(i, state));
+    }
+
+    /**
+     * Copies an instance with a new state. Callers may still hold the instance we handed out,
+     * so we never change it in place.
+     */
+    private static Instance withState(Instance i, InstanceStateName state) {
+        return new Instance()
+                .withInstanceId(i.getInstanceId())
+                .withImageId(i.getImageId())
+                .withState(new InstanceState().withName(state))
+                .withPrivateDnsName(i.getPrivateDnsName())
+                .withPublicDnsName(i.getPublicDnsName())
+                .withStateTransitionReason(i.getStateTransitionReason())
+                .withKeyName(i.getKeyName())
+                .withAmiLaunchIndex(i.getAmiLaunchIndex())
+                .withProductCodes(i.getProductCodes())
+                .withInstanceType(i.getInstanceType())
+                .withLaunchTime(i.getLaunchTime())
+                .withPlacement(i.getPlacement())
+                .withKernelId(i.getKernelId())
+                .withRamdiskId(i.getRamdiskId())
+                .withPlatform(i.getPlatform())
+                .withMonitoring(i.getMonitoring())
+                .withSubnetId(i.getSubnetId())
+                .withVpcId(i.getVpcId())
+                .withPrivateIpAddress(i.getPrivateIpAddress())
+                .withPublicIpAddress(i.getPublicIpAddress())
+                .withStateReason(i.getStateReason())
+                .withArchitecture(i.getArchitecture())
+                .withRootDeviceType(i.getRootDeviceType())
+                .withRootDeviceName(i.getRootDeviceName())
+                .withBlockDeviceMappings(i.getBlockDeviceMappings())
+                .withVirtualizationType(i.getVirtualizationType())
+                .withInstanceLifecycle(i.getInstanceLifecycle())
+                .withSpotInstanceRequestId(i.getSpotInstanceRequestId())
+                .withClientToken(i.getClientToken())
+                .withTags(i.getTags())
+                .withSecurityGroups(i.getSecurityGroups())
+                .withSourceDestCheck(i.getSourceDestCheck())
+                .withHypervisor(i.getHypervisor())
+                .withNetworkInterfaces(i.getNetworkInterfaces())
+                .withIamInstanceProfile(i.getIamInstanceProfile())
+                .withEbsOptimized(i.getEbsOptimized())
+                .withSriovNetSupport(i.getSriovNetSupport());
+    }
+
+    /**
+     * Instances keyed by ID, plus the counters of the live slaves derived from them.
+     * Written only while holding the {@link InstanceInventory} monitor.
+     */
+    private final class Snapshot {
+        final ConcurrentHashMap<String, Instance> instances = new ConcurrentHashMap<String, Instance>();
+        final ConcurrentHashMap<String, AtomicInteger> counters = new ConcurrentHashMap<String, AtomicInteger>();
+
+        void put(Instance i) {
+            remove(i.getInstanceId());
+            instances.put(i.getInstanceId(), i);
+            if (isLiveSlave(i)) {
+                counter(i.getImageId()).incrementAndGet();
+                counter(ALL_AMIS).incrementAndGet();
+            }
+        }
+
+        void remove(String instanceId) {
+            Instance old = instances.remove(instanceId);
+            if (isLiveSlave(old)) {
+                counter(old.getImageId()).decrementAndGet();
+                counter(ALL_AMIS).decrementAndGet();
+            }
+        }
+
+        private AtomicInteger counter(String key) {
+            AtomicInteger n = counters.get(key);
+            if (n == null) {
+                n = new AtomicInteger();
+                counters.put(key, n);
+            }
+            return n;
+        }
+
+        private boolean isLiveSlave(Instance i) {
+            if (i == null || !cloud.isEc2ProvisionedSlave(i, null))
+                return false;
+            InstanceStateName stateName = InstanceStateName.fromValue(i.getState().getName());
+            return stateName == InstanceStateName.Pending || stateName == InstanceStateName.Running;
+        }
+    }
+
+    /**
+     * Runs the background describes of all clouds, which block on EC2, off the threads Jenkins shares.
+     */
+    private static final ScheduledExecutorService REFRESHER = Executors.newSingleThreadScheduledExecutor(
+            new NamedThreadFactory("EC2 instance inventory refresh"));
+
+    private static final class Watch {
+        final SettableFuture<Instance> future = SettableFuture.create();
+        final long since = System.currentTimeMillis();
+    }
+
+    /**
+     * How long (in milliseconds) {@link #refreshLater(String)} waits for more requests to describe together.
+     */
+    private static final long REFRESH_DELAY = 500;
+
+    /**
+     * Milliseconds between the describes of the instances waited on by {@link #awaitSettled(String)}.
+     */
+    private static final long POLL_PERIOD = Long.getLong("jenkins.ec2.statePollPeriod", 5000);
+
+    /**
+     * Milliseconds an instance waited on may be missing from the describes, as new ones are for a while.
+     */
+    private static final long NOT_FOUND_TIMEOUT = Long.getLong("jenkins.ec2.stateNotFoundTimeout", TimeUnit.MINUTES.toMillis(5));
+
+    private static final Logger LOGGER = Logger.getLogger(InstanceInventory.class.getName());
+}
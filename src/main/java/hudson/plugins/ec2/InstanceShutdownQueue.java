@@ -0,0 +1,275 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2;
+
+import hudson.plugins.ec2.util.NamedThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CancelSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Terminate, stop and spot request cancel requests of an {@link EC2Cloud}, collected for
+ * {@link #BATCH_DELAY} milliseconds and sent with one call per kind and chunk of
+ * {@link EC2Cloud#DESCRIBE_CHUNK_SIZE} IDs, so that many slaves idling out together don't each make a
+ * call of their own on the thread that retires them.
+ *
+ * <p>
+ * EC2 fails a whole request when one of its IDs is bad, in which case the IDs are sent again one by
+ * one. An ID EC2 doesn't know counts as done: the instance or request is already gone. A request failed
+ * for any other reason, throttling first of all, is queued again as a whole after a backoff, up to
+ * {@link #MAX_ATTEMPTS} times.
+ */
+public class InstanceShutdownQueue {
+    private enum Action {
+        // in the order they are sent, so that cancelled spot requests don't replace the instances terminated next
+        CANCEL_SPOT_REQUEST("cancel"), TERMINATE("terminate"), STOP("stop");
+
+        final String verb;
+
+        Action(String verb) {
+            this.verb = verb;
+        }
+    }
+
+    private static final class Intent {
+        final Action action;
+        final String id;
+        final SettableFuture<Boolean> result = SettableFuture.create();
+        /* times it was sent in a request that failed as a whole, only touched by the sender thread */
+        int failedAttempts;
+
+        Intent(Action action, String id) {
+            this.action = action;
+            this.id = id;
+        }
+    }
+
+    private final EC2Cloud cloud;
+
+    private final Queue<Intent> intents = new ConcurrentLinkedQueue<Intent>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    public InstanceShutdownQueue(EC2Cloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Asks for the instance to be terminated. The future tells whether it was, or was already gone.
+     */
+    public ListenableFuture<Boolean> terminate(String instanceId) {
+        return add(Action.TERMINATE, instanceId);
+    }
+
+    /**
+     * Asks for the instance to be stopped. The future tells whether the stop request went through.
+     */
+    public ListenableFuture<Boolean> stop(String instanceId) {
+        return add(Action.STOP, instanceId);
+    }
+
+    /**
+     * Asks for the spot request to be cancelled. The future tells whether it was, or was already gone.
+     */
+    public ListenableFuture<Boolean> cancelSpotRequest(String spotInstanceRequestId) {
+        return add(Action.CANCEL_SPOT_REQUEST, spotInstanceRequestId);
+    }
+
+    private ListenableFuture<Boolean> add(Action action, String id) {
+        Intent intent = new Intent(action, id);
+        intents.add(intent);
+        scheduleFlush();
+        return intent.result;
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            SENDER.schedule(new Runnable() {
+                public void run() {
+                    flushScheduled.set(false);
+                    flush();
+                }
+            }, BATCH_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        Map<Action, Map<String, List<Intent>>> byAction = new EnumMap<Action, Map<String, List<Intent>>>(Action.class);
+        for (Intent intent; (intent = intents.poll()) != null;) {
+            Map<String, List<Intent>> byId = byAction.get(intent.action);
+            if (byId == null) {
+                byId = new LinkedHashMap<String, List<Intent>>();
+                byAction.put(intent.action, byId);
+            }
+            List<Intent> same = byId.get(intent.id);
+            if (same == null) {
+                same = new ArrayList<Intent>();
+                byId.put(intent.id, same);
+            }
+            same.add(intent);
+        }
+
+        for (Map.Entry<Action, Map<String, List<Intent>>> e : byAction.entrySet()) {
+            List<String> ids = new ArrayList<String>(e.getValue().keySet());
+            for (int i = 0; i < ids.size(); i += EC2Cloud.DESCRIBE_CHUNK_SIZE) {
+                List<String> chunk = new ArrayList<String>(ids.subList(i, Math.min(i + EC2Cloud.DESCRIBE_CHUNK_SIZE, ids.size())));
+                send(e.getKey(), chunk, e.getValue());
+            }
+        }
+    }
+
+    private void send(Action action, List<String> ids, Map<String, List<Intent>> intents) {
+        try {
+            call(action, ids);
+            for (String id : ids) {
+                LOGGER.info("EC2 " + action.verb + " request sent for " + id);
+                done(action, intents.get(id), true);
+            }
+        } catch (AmazonServiceException e) {
+            if (!isInvalidId(e.getErrorCode())) {
+                retryLater(action, ids, intents, e);
+            } else if (ids.size() > 1) {
+                // only the bad IDs are to blame, which sending them one by one tells apart
+                LOGGER.log(Level.FINE, "Failed to " + action.verb + " " + ids.size()
+                        + " at once, sending them one by one", e);
+                for (String id : ids) {
+                    send(action, Collections.singletonList(id), intents);
+                }
+            } else if (e.getErrorCode().endsWith(".NotFound")) {
+                LOGGER.info("EC2 no longer knows " + ids.get(0) + ", nothing to " + action.verb);
+                done(action, intents.get(ids.get(0)), true);
+            } else {
+                LOGGER.log(Level.WARNING, "Failed to " + action.verb + " " + ids.get(0), e);
+                done(action, intents.get(ids.get(0)), false);
+            }
+        } catch (AmazonClientException e) {
+            retryLater(action, ids, intents, e);
+        }
+    }
+
+    private static boolean isInvalidId(String errorCode) {
+        return errorCode != null
+                && (errorCode.startsWith("InvalidInstanceID.") || errorCode.startsWith("InvalidSpotInstanceRequestID."));
+    }
+
+    /**
+     * Queues a request that failed as a whole again, after a backoff that doubles with each attempt, so that
+     * a throttled batch is neither split into more calls nor sent again while EC2 asks to slow down.
+     */
+    private void retryLater(Action action, List<String> ids, Map<String, List<Intent>> intents, AmazonClientException e) {
+        final List<Intent> failed = new ArrayList<Intent>();
+        int attempts = 0;
+        for (String id : ids) {
+            for (Intent intent : intents.get(id)) {
+                attempts = Math.max(attempts, ++intent.failedAttempts);
+                failed.add(intent);
+            }
+        }
+        if (attempts >= MAX_ATTEMPTS) {
+            LOGGER.log(Level.WARNING, "Failed to " + action.verb + " " + ids + " after " + attempts + " attempts", e);
+            for (String id : ids) {
+                done(action, intents.get(id), false);
+            }
+            return;
+        }
+
+        long delay = BATCH_DELAY << attempts;
+        LOGGER.info("Failed to " + action.verb + " " + ids + ": " + e.getMessage() + ", retrying in " + delay + " ms");
+        SENDER.schedule(new Runnable() {
+            public void run() {
+                InstanceShutdownQueue.this.intents.addAll(failed);
+                scheduleFlush();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void call(Action action, List<String> ids) throws AmazonClientException {
+        AmazonEC2 ec2 = cloud.connect();
+        LOGGER.fine("Sending " + action.verb + " request for " + ids);
+        switch (action) {
+        case CANCEL_SPOT_REQUEST:
+            ec2.cancelSpotInstanceRequests(new CancelSpotInstanceRequestsRequest(ids));
+            break;
+        case TERMINATE:
+            ec2.terminateInstances(new TerminateInstancesRequest(ids));
+            break;
+        case STOP:
+            ec2.stopInstances(new StopInstancesRequest(ids));
+            break;
+        }
+    }
+
+    private void done(Action action, List<Intent> intents, boolean success) {
+        if (success) {
+            String id = intents.get(0).id;
+            if (action == Action.TERMINATE) {
+                cloud.getInventory().updateState(id, InstanceStateName.ShuttingDown);
+            } else if (action == Action.STOP) {
+                cloud.getInventory().updateState(id, InstanceStateName.Stopping);
+            }
+        }
+        for (Intent intent : intents) {
+            intent.result.set(success);
+        }
+    }
+
+    /**
+     * How long (in milliseconds) requests are collected before being sent together.
+     */
+    private static final long BATCH_DELAY = Long.getLong("jenkins.ec2.shutdownBatchDelay", 1000);
+
+    /**
+     * Number of times a request that fails as a whole is sent before its slaves are told it failed.
+     */
+    private static final int MAX_ATTEMPTS = Integer.getInteger("jenkins.ec2.shutdownAttempts", 5);
+
+    /**
+     * Sends the batches of all clouds, which block on EC2, off the threads Jenkins shares.
+     */
+    private static final ScheduledExecutorService SENDER = Executors.newSingleThreadScheduledExecutor(
+            new NamedThreadFactory("EC2 instance shutdown"));
+
+    private static final Logger LOGGER = Logger.getLogger(InstanceShutdownQueue.class.getName());
+}
@@ -0,0 +1,231 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2;
+
+import hudson.model.Api;
+import hudson.plugins.ec2.LaunchTimer.Phase;
+import hudson.plugins.ec2.util.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.StaplerProxy;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * How long the slaves of a cloud took to launch, phase by phase, for the whole cloud and for each template.
+ *
+ * <p>
+ * Shown at {@code /cloud/NAME/launchMetrics/}, with the numbers in {@code api/json} and, one line per
+ * phase, in {@code text}. Launches are timed by a {@link LaunchTimer}, and counted when the slave comes
+ * online or fails to. The metrics start over when Jenkins restarts or the cloud is reconfigured.
+ */
+@ExportedBean
+public class LaunchMetrics implements StaplerProxy {
+    private final Stats all = new Stats("all");
+
+    /* by template description */
+    private final ConcurrentMap<String, Stats> templates = new ConcurrentHashMap<String, Stats>();
+
+    /**
+     * Counts a launch of a slave of the given template, which may be gone by now.
+     */
+    void record(SlaveTemplate t, LaunchTimer timer, boolean online) {
+        all.record(timer, online);
+        if (t == null)
+            return;
+        Stats s = templates.get(t.description);
+        if (s == null) {
+            Stats n = templates.putIfAbsent(t.description, s = new Stats(t.getDisplayName()));
+            if (n != null)
+                s = n;
+        }
+        s.record(timer, online);
+    }
+
+    @Exported
+    public Stats getAll() {
+        return all;
+    }
+
+    @Exported
+    public List<Stats> getTemplates() {
+        return new ArrayList<Stats>(templates.values());
+    }
+
+    /**
+     * The whole cloud, then each template.
+     */
+    public List<Stats> getScopes() {
+        List<Stats> r = getTemplates();
+        r.add(0, all);
+        return r;
+    }
+
+    public Object getTarget() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        return this;
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    /**
+     * The percentiles as text: a header line, then one tab separated line per template (or "all") and phase.
+     */
+    public void doText(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        rsp.setContentType("text/plain;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.println("scope\tphase\tcount\tmean\tp50\tp90\tp99\tmax");
+        for (Stats s : getScopes()) {
+            for (PhaseStats p : s.getPhases()) {
+                w.println(s.getName() + "\t" + p.getName() + "\t" + p.getCount() + "\t" + p.getMean() + "\t"
+                        + p.getP50() + "\t" + p.getP90() + "\t" + p.getP99() + "\t" + p.getMax());
+            }
+        }
+        w.flush();
+    }
+
+    /**
+     * The launches of the cloud or of one of its templates.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Stats {
+        private final String name;
+        private final AtomicLong launches = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        /* one per phase, then the total */
+        private final LatencyHistogram[] histograms = new LatencyHistogram[Phase.values().length + 1];
+
+        Stats(String name) {
+            this.name = name;
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+        }
+
+        void record(LaunchTimer timer, boolean online) {
+            launches.incrementAndGet();
+            if (!online)
+                failures.incrementAndGet();
+            // the phases a failed launch got through took as long as ever
+            for (Phase phase : Phase.values()) {
+                long millis = timer.getMillis(phase);
+                if (millis >= 0)
+                    histograms[phase.ordinal()].record(millis);
+            }
+            // reconnects aren't timed from the provisioning, so their total is not comparable
+            if (online && timer.getMillis(Phase.PROVISION) >= 0)
+                histograms[histograms.length - 1].record(timer.getTotalMillis());
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public long getLaunches() {
+            return launches.get();
+        }
+
+        @Exported
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * The phases, then the total time of the slaves provisioned by the cloud that came online.
+         */
+        @Exported
+        public List<PhaseStats> getPhases() {
+            List<PhaseStats> r = new ArrayList<PhaseStats>();
+            for (Phase phase : Phase.values()) {
+                r.add(new PhaseStats(phase.getName(), histograms[phase.ordinal()]));
+            }
+            r.add(new PhaseStats("total", histograms[histograms.length - 1]));
+            return r;
+        }
+    }
+
+    /**
+     * Percentiles of one phase, in milliseconds.
+     */
+    @ExportedBean(defaultVisibility = 3)
+    public static final class PhaseStats {
+        private final String name;
+        private final LatencyHistogram histogram;
+
+        PhaseStats(String name, LatencyHistogram histogram) {
+            this.name = name;
+            this.histogram = histogram;
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        @Exported
+        public long getMean() {
+            return histogram.getMean();
+        }
+
+        @Exported
+        public long getP50() {
+            return histogram.getPercentile(0.5);
+        }
+
+        @Exported
+        public long getP90() {
+            return histogram.getPercentile(0.9);
+        }
+
+        @Exported
+        public long getP99() {
+            return histogram.getPercentile(0.99);
+        }
+
+        @Exported
+        public long getMax() {
+            return histogram.getMax();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the phases of launching one slave, from the cloud deciding to provision it to its agent
+ * connecting. Each phase is timed from the end of the one before; phases that don't happen for a slave,
+ * such as an init script that already ran, are left out.
+ *
+ * @see LaunchMetrics
+ */
+public final class LaunchTimer {
+    public enum Phase {
+        /** until EC2 accepted the request for the instance */
+        PROVISION,
+        /** until the instance was running */
+        RUNNING,
+        /** until SSH or WinRM accepted a connection */
+        REMOTE,
+        /** until the init script finished */
+        INIT,
+        /** until the slave agent was connected */
+        AGENT;
+
+        public String getName() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    private final long start = System.nanoTime();
+    private long last = start;
+    private final long[] millis = new long[Phase.values().length];
+    private boolean finished;
+
+    public LaunchTimer() {
+        Arrays.fill(millis, -1);
+    }
+
+    /**
+     * Ends the given phase now, unless it already ended.
+     */
+    public synchronized void mark(Phase phase) {
+        if (finished || millis[phase.ordinal()] >= 0)
+            return;
+        long now = System.nanoTime();
+        millis[phase.ordinal()] = TimeUnit.NANOSECONDS.toMillis(now - last);
+        last = now;
+    }
+
+    /**
+     * Stops the timer, and tells whether this call did.
+     */
+    synchronized boolean finish() {
+        if (finished)
+            return false;
+        finished = true;
+        return true;
+    }
+
+    /**
+     * Milliseconds the given phase took, or -1 if it didn't happen.
+     */
+    public synchronized long getMillis(Phase phase) {
+        return millis[phase.ordinal()];
+    }
+
+    /**
+     * Milliseconds from the start to the end of the last phase.
+     */
+    public synchronized long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(last - start);
+    }
+
+    /**
+     * The phases as {@code name=millis} pairs, for the log.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder b = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            if (millis[phase.ordinal()] >= 0)
+                b.append(phase.getName()).append('=').append(millis[phase.ordinal()]).append("ms ");
+        }
+        return b.append("total=").append(getTotalMillis()).append("ms").toString();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Security group IDs that have been validated for a subnet, keyed by the group names or IDs
+ * a template is configured with, so that VPC launches don't describe the groups and subnets every time.
+ *
+ * <p>
+ * Entries are kept for {@link #TTL} milliseconds, or until {@link #clear()}.
+ */
+public class SecurityGroupCache {
+    private final ConcurrentHashMap<String, Entry> groups = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * The validated group IDs, or null if they need to be resolved.
+     */
+    public List<String> get(String subnetId, Set<String> securityGroups) {
+        Entry e = groups.get(key(subnetId, securityGroups));
+        if (e == null || System.currentTimeMillis() - e.resolveTime > TTL)
+            return null;
+        return e.groupIds;
+    }
+
+    public void put(String subnetId, Set<String> securityGroups, List<String> groupIds) {
+        groups.put(key(subnetId, securityGroups), new Entry(Collections.unmodifiableList(groupIds)));
+    }
+
+    /**
+     * Forgets all resolved groups.
+     */
+    public void clear() {
+        groups.clear();
+    }
+
+    private static String key(String subnetId, Set<String> securityGroups) {
+        return subnetId + "|" + new TreeSet<String>(securityGroups);
+    }
+
+    private static final class Entry {
+        final List<String> groupIds;
+        final long resolveTime = System.currentTimeMillis();
+
+        Entry(List<String> groupIds) {
+            this.groupIds = groupIds;
+        }
+    }
+
+    /**
+     * How long (in milliseconds) resolved groups are used before they are described again.
+     */
+    private static final long TTL = Long.getLong("jenkins.ec2.securityGroupCacheTime", TimeUnit.MINUTES.toMillis(30));
+}
@@ -25,6 +25,7 @@ package hudson.plugins.ec2;
 
 import hudson.Extension;
 import hudson.Util;
+import hudson.model.Computer;
 import hudson.model.Describable;
 import hudson.model.TaskListener;
 import hudson.model.Descriptor;
@@ -34,6 +35,7 @@ import hudson.model.Label;
 import hudson.model.Node;
 import hudson.model.labels.LabelAtom;
 import hudson.plugins.ec2.util.DeviceMappingParser;
+import hudson.plugins.ec2.util.TimeOfDaySchedule;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 
@@ -41,6 +43,7 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.net.URL;
 import java.util.*;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
@@ -94,6 +97,23 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     public boolean rebootAfterBuild;
     public boolean useJnlp;
 
+    /**
+     * Number of initialized, stopped instances kept ready to be started, see {@link EC2WarmPoolMaintainer}.
+     */
+    public int warmPoolSize;
+
+    /**
+     * Number of idle executors kept connected and ready, see {@link EC2MinIdleReconciler}.
+     */
+    public int minIdleExecutors;
+
+    /**
+     * When {@link #minIdleExecutors} applies, as a {@link TimeOfDaySchedule}; always if null.
+     */
+    public String minIdleSchedule;
+
+    private transient TimeOfDaySchedule minIdleTimes;
+
     private transient /*almost final*/ Set<LabelAtom> labelSet;
 	private transient /*almost final*/ Set<String> securityGroupSet;
 	
@@ -107,7 +127,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 	public transient String rootCommandPrefix;
 
     @DataBoundConstructor
-    public SlaveTemplate(String ami, String zone, SpotConfiguration spotConfig, String securityGroups, String remoteFS, InstanceType type, String labelString, Node.Mode mode, String description, String initScript, String userData, String numExecutors, String remoteAdmin, AMITypeData amiType, String jvmopts, boolean stopOnTerminate, String subnetId, List<EC2Tag> tags, String idleTerminationMinutes, boolean usePrivateDnsName, String instanceCapStr, String iamInstanceProfile, boolean useEphemeralDevices, boolean useDedicatedTenancy, String launchTimeoutStr, boolean associatePublicIp, String customDeviceMapping, boolean rebootAfterBuild, boolean useJnlp) {
+    public SlaveTemplate(String ami, String zone, SpotConfiguration spotConfig, String securityGroups, String remoteFS, InstanceType type, String labelString, Node.Mode mode, String description, String initScript, String userData, String numExecutors, String remoteAdmin, AMITypeData amiType, String jvmopts, boolean stopOnTerminate, String subnetId, List<EC2Tag> tags, String idleTerminationMinutes, boolean usePrivateDnsName, String instanceCapStr, String iamInstanceProfile, boolean useEphemeralDevices, boolean useDedicatedTenancy, String launchTimeoutStr, boolean associatePublicIp, String customDeviceMapping, boolean rebootAfterBuild, boolean useJnlp, String warmPoolSizeStr, String minIdleExecutorsStr, String minIdleSchedule) {
         this.ami = ami;
         this.zone = zone;
         this.spotConfig = spotConfig;
@@ -149,9 +169,43 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         this.rebootAfterBuild = rebootAfterBuild;
         this.useJnlp = useJnlp;
 
+        try {
+            this.warmPoolSize = Math.max(0, Integer.parseInt(Util.fixNull(warmPoolSizeStr).trim()));
+        } catch (NumberFormatException nfe) {
+            this.warmPoolSize = 0;
+        }
+
+        try {
+            this.minIdleExecutors = Math.max(0, Integer.parseInt(Util.fixNull(minIdleExecutorsStr).trim()));
+        } catch (NumberFormatException nfe) {
+            this.minIdleExecutors = 0;
+        }
+        this.minIdleSchedule = Util.fixEmptyAndTrim(minIdleSchedule);
+
         readResolve(); // initialize
     }
 
+    /**
+     * Backward compatible constructor for reloading previous version data
+     */
+    public SlaveTemplate(String ami, String zone, SpotConfiguration spotConfig, String securityGroups, String remoteFS, InstanceType type, String labelString, Node.Mode mode, String description, String initScript, String userData, String numExecutors, String remoteAdmin, AMITypeData amiType, String jvmopts, boolean stopOnTerminate, String subnetId, List<EC2Tag> tags, String idleTerminationMinutes, boolean usePrivateDnsName, String instanceCapStr, String iamInstanceProfile, boolean useEphemeralDevices, boolean useDedicatedTenancy, String launchTimeoutStr, boolean associatePublicIp, String customDeviceMapping, boolean rebootAfterBuild, boolean useJnlp, String warmPoolSizeStr) {
+        this(ami, zone, spotConfig, securityGroups, remoteFS, type, labelString, mode, description, initScript, userData,
+                numExecutors, remoteAdmin, amiType, jvmopts, stopOnTerminate, subnetId, tags, idleTerminationMinutes,
+                usePrivateDnsName, instanceCapStr, iamInstanceProfile, useEphemeralDevices, useDedicatedTenancy,
+                launchTimeoutStr, associatePublicIp, customDeviceMapping, rebootAfterBuild, useJnlp, warmPoolSizeStr,
+                null, null);
+    }
+
+    /**
+     * Backward compatible constructor for reloading previous version data
+     */
+    public SlaveTemplate(String ami, String zone, SpotConfiguration spotConfig, String securityGroups, String remoteFS, InstanceType type, String labelString, Node.Mode mode, String description, String initScript, String userData, String numExecutors, String remoteAdmin, AMITypeData amiType, String jvmopts, boolean stopOnTerminate, String subnetId, List<EC2Tag> tags, String idleTerminationMinutes, boolean usePrivateDnsName, String instanceCapStr, String iamInstanceProfile, boolean useEphemeralDevices, boolean useDedicatedTenancy, String launchTimeoutStr, boolean associatePublicIp, String customDeviceMapping, boolean rebootAfterBuild, boolean useJnlp) {
+        this(ami, zone, spotConfig, securityGroups, remoteFS, type, labelString, mode, description, initScript, userData,
+                numExecutors, remoteAdmin, amiType, jvmopts, stopOnTerminate, subnetId, tags, idleTerminationMinutes,
+                usePrivateDnsName, instanceCapStr, iamInstanceProfile, useEphemeralDevices, useDedicatedTenancy,
+                launchTimeoutStr, associatePublicIp, customDeviceMapping, rebootAfterBuild, useJnlp, null);
+    }
+
     /**
      * Backward compatible constructor for reloading previous version data
      */
@@ -284,6 +338,95 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         }
     }
 
+    public String getWarmPoolSizeStr() {
+        if (warmPoolSize == 0) {
+            return "";
+        } else {
+            return String.valueOf(warmPoolSize);
+        }
+    }
+
+    public String getMinIdleExecutorsStr() {
+        if (minIdleExecutors == 0) {
+            return "";
+        } else {
+            return String.valueOf(minIdleExecutors);
+        }
+    }
+
+    /**
+     * Number of idle executors to keep right now, according to the schedule.
+     */
+    public int getMinIdleExecutorsNow() {
+        if (minIdleExecutors == 0 || minIdleTimes == null || !minIdleTimes.isActiveNow())
+            return 0;
+        return minIdleExecutors;
+    }
+
+    /**
+     * Number of executors of the slaves of this template that could take a build right away, or will once
+     * connected. Slaves that are temporarily offline or in the warm pool don't count.
+     */
+    public int countIdleExecutors() {
+        int n = 0;
+        for (EC2AbstractSlave s : NodeIterator.nodes(EC2AbstractSlave.class)) {
+            if (!getParent().name.equals(s.cloudName) || !StringUtils.equals(description, s.getNodeDescription()))
+                continue;
+            Computer c = s.toComputer();
+            if (c == null || c.isTemporarilyOffline() || s.isInWarmPool())
+                continue;
+            if (c.isOnline()) {
+                n += c.countIdle();
+            } else if (c.isConnecting()) {
+                n += s.getNumExecutors();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Whether the AMI boots from EBS, as only such instances can be stopped to be kept in the warm pool.
+     */
+    boolean isEbsBacked() throws AmazonClientException {
+        return DeviceType.Ebs.toString().equals(getParent().getAmiMetadata().getRootDeviceType(ami));
+    }
+
+    /**
+     * Value of the {@link EC2Tag#TAG_NAME_JENKINS_WARM_POOL} tag of the warm instances of this template.
+     */
+    String getWarmPoolTagValue() {
+        return ami + " " + getDisplayName();
+    }
+
+    /**
+     * Number of instances in the warm pool of this template, including those still being initialized,
+     * according to the inventory of the cloud.
+     */
+    public int countWarmPool() {
+        // those whose slave left the pool, failing to be stopped, keep the tag until retired
+        Set<String> left = new HashSet<String>();
+        for (EC2AbstractSlave s : NodeIterator.nodes(EC2AbstractSlave.class)) {
+            if (!s.isInWarmPool())
+                left.add(s.getInstanceId());
+        }
+
+        String value = getWarmPoolTagValue();
+        int n = 0;
+        for (Instance i : getParent().getInventory().getInstances()) {
+            InstanceStateName state = InstanceStateName.fromValue(i.getState().getName());
+            if (state == InstanceStateName.Terminated || state == InstanceStateName.ShuttingDown
+                    || left.contains(i.getInstanceId()))
+                continue;
+            for (Tag t : i.getTags()) {
+                if (EC2Tag.TAG_NAME_JENKINS_WARM_POOL.equals(t.getKey()) && value.equals(t.getValue())) {
+                    n++;
+                    break;
+                }
+            }
+        }
+        return n;
+    }
+
     public String getSpotMaxBidPrice(){
         if (spotConfig == null)
             return null;
@@ -300,28 +443,67 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
      * @return always non-null. This needs to be then added to {@link Hudson#addNode(Node)}.
      */
     public EC2AbstractSlave provision(TaskListener listener) throws AmazonClientException, IOException {
+        return provision(listener, 1).get(0);
+    }
+
+    /**
+     * Provisions up to the given number of EC2 slaves in one go. On-demand slaves are obtained by restarting
+     * matching stopped instances and then launching the rest with a single run-instances request, so the list
+     * may be shorter than requested if EC2 does not have the capacity for all of them. Spot requests carry the
+     * slave name in their user data, so those are still placed one at a time, and if one of them fails the
+     * slaves of the requests already placed are returned.
+     *
+     * @return always non-empty. The slaves need to be then added to {@link Hudson#addNode(Node)}.
+     */
+    public List<EC2AbstractSlave> provision(TaskListener listener, int number) throws AmazonClientException, IOException {
         if (this.spotConfig != null){
-            return provisionSpot(listener);
+            List<EC2AbstractSlave> slaves = new ArrayList<EC2AbstractSlave>(number);
+            for (int i = 0; i < number; i++) {
+                try {
+                    slaves.add(provisionSpot(listener));
+                } catch (AmazonClientException e) {
+                    if (slaves.isEmpty())
+                        throw e;
+                    // the requests placed so far are live: hand them out rather than leak them
+                    LOGGER.log(Level.WARNING, "Placed only " + slaves.size() + " of " + number + " spot requests for " + description, e);
+                    break;
+                } catch (IOException e) {
+                    if (slaves.isEmpty())
+                        throw e;
+                    LOGGER.log(Level.WARNING, "Placed only " + slaves.size() + " of " + number + " spot requests for " + description, e);
+                    break;
+                }
+            }
+            return slaves;
         }
-        return provisionOndemand(listener);
+        return provisionOndemand(listener, number, false);
+    }
+
+    /**
+     * Launches new on-demand instances for the warm pool of this template, tagged as such so that they
+     * are counted by {@link #countWarmPool()}. The slaves need to be then added to {@link Hudson#addNode(Node)},
+     * connected to run the init script and stopped, which {@link EC2WarmPoolMaintainer} takes care of.
+     */
+    public List<EC2AbstractSlave> provisionWarm(TaskListener listener, int number) throws AmazonClientException, IOException {
+        return provisionOndemand(listener, number, true);
     }
 
     /**
-     * Provisions an On-demand EC2 slave by launching a new instance or 
-     * starting a previously-stopped instance.
+     * Provisions On-demand EC2 slaves by starting previously-stopped instances, those of the warm pool among
+     * them, and launching new instances for the remainder. Instances for the warm pool are always new.
      */
-    private EC2AbstractSlave provisionOndemand(TaskListener listener) throws AmazonClientException, IOException {
+    private List<EC2AbstractSlave> provisionOndemand(TaskListener listener, int number, boolean warm) throws AmazonClientException, IOException {
         PrintStream logger = listener.getLogger();
         AmazonEC2 ec2 = getParent().connect();
 
         try {
-	        String msg = "Launching " + ami + " for template " + description;
+	        String msg = "Launching " + number + " instance(s) of " + ami + " for template " + description;
             logger.println(msg);
             LOGGER.info(msg);
 
-            KeyPair keyPair = getKeyPair(ec2);
+            KeyPair keyPair = getKeyPair();
 
-            RunInstancesRequest riRequest = new RunInstancesRequest(ami, 1, 1);
+            RunInstancesRequest riRequest = new RunInstancesRequest(ami, 1, number);
             InstanceNetworkInterfaceSpecification net = new InstanceNetworkInterfaceSpecification();
 
             if (useEphemeralDevices) {
@@ -401,71 +583,160 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             	inst_tags.add(new Tag(EC2Tag.TAG_NAME_JENKINS_SLAVE_TYPE, "demand"));
             }
 
-            DescribeInstancesRequest diRequest = new DescribeInstancesRequest();
-            diFilters.add(new Filter("instance-state-name").withValues(InstanceStateName.Stopped.toString(),
-                    InstanceStateName.Stopping.toString()));
-            diRequest.setFilters(diFilters);
+            if (StringUtils.isNotBlank(getIamInstanceProfile())) {
+                riRequest.setIamInstanceProfile(new IamInstanceProfileSpecification().withArn(getIamInstanceProfile()));
+            }
 
-            msg = "Looking for existing instances with describe-instance: "+diRequest;
-            logger.println(msg);
-            LOGGER.fine(msg);
+            List<Instance> existingInstances = new ArrayList<Instance>();
+            if (warm) {
+                inst_tags.add(new Tag(EC2Tag.TAG_NAME_JENKINS_WARM_POOL, getWarmPoolTagValue()));
+            } else {
+                DescribeInstancesRequest diRequest = new DescribeInstancesRequest();
+                diFilters.add(new Filter("instance-state-name").withValues(InstanceStateName.Stopped.toString(),
+                        InstanceStateName.Stopping.toString()));
+                diRequest.setFilters(diFilters);
 
-            DescribeInstancesResult diResult = ec2.describeInstances(diRequest);
+                msg = "Looking for existing instances with describe-instance: "+diRequest;
+                logger.println(msg);
+                LOGGER.fine(msg);
+
+                DescribeInstancesResult diResult = ec2.describeInstances(diRequest);
 
-            Instance existingInstance = null;
-            if (StringUtils.isNotBlank(getIamInstanceProfile())) {
-                riRequest.setIamInstanceProfile(new IamInstanceProfileSpecification().withArn(getIamInstanceProfile()));
-                // cannot filter on IAM Instance Profile, so search in result
-                reservationLoop:
                 for (Reservation reservation : diResult.getReservations()) {
                     for (Instance instance : reservation.getInstances()) {
-                        if (instance.getIamInstanceProfile() != null && instance.getIamInstanceProfile().getArn().equals(getIamInstanceProfile())) {
-                            existingInstance = instance;
-                            break reservationLoop;
+                        // cannot filter on IAM Instance Profile, so search in result
+                        if (StringUtils.isNotBlank(getIamInstanceProfile()) &&
+                                (instance.getIamInstanceProfile() == null || !instance.getIamInstanceProfile().getArn().equals(getIamInstanceProfile()))) {
+                            continue;
                         }
+                        existingInstances.add(instance);
                     }
                 }
-            } else if (diResult.getReservations().size() > 0) {
-                existingInstance = diResult.getReservations().get(0).getInstances().get(0);
+                Collections.sort(existingInstances, WARM_FIRST);
+                if (existingInstances.size() > number) {
+                    existingInstances = new ArrayList<Instance>(existingInstances.subList(0, number));
+                }
             }
 
-            if (existingInstance == null) {
-                // Have to create a new instance
-                Instance inst = ec2.runInstances(riRequest).getReservation().getInstances().get(0);
+            List<EC2AbstractSlave> slaves = new ArrayList<EC2AbstractSlave>(number);
+            if (!existingInstances.isEmpty()) {
+                slaves.addAll(startExistingInstances(ec2, existingInstances, logger));
+            }
 
+            int remaining = number - existingInstances.size();
+            if (remaining > 0) {
+                // Have to create new instances, all with the same request
+                riRequest.setMaxCount(remaining);
+                List<Instance> newInstances;
+                try {
+                    newInstances = ec2.runInstances(riRequest).getReservation().getInstances();
+                } catch (AmazonClientException e) {
+                    checkKeyPairNotFound(e);
+                    if (slaves.isEmpty())
+                        throw e;
+                    // don't lose the instances we have already restarted
+                    msg = "Failed to launch " + remaining + " new instance(s) of " + ami + ": " + e.getMessage();
+                    logger.println(msg);
+                    LOGGER.log(Level.WARNING, msg, e);
+                    return slaves;
+                }
 
-                /* Now that we have our instance, we can set tags on it */
+                /* Now that we have our instances, we can set tags on them */
                 if ( !inst_tags.isEmpty() ) {
-                    updateRemoteTags( ec2, inst_tags, inst.getInstanceId() );
+                    List<String> instanceIds = new ArrayList<String>(newInstances.size());
+                    for (Instance inst : newInstances) {
+                        instanceIds.add(inst.getInstanceId());
+                    }
+                    updateRemoteTags( ec2, inst_tags, instanceIds.toArray(new String[instanceIds.size()]) );
+                }
 
-                    // That was a remote request - we should also update our local instance data.
-                    inst.setTags(inst_tags);
+                for (Instance inst : newInstances) {
+                    if ( !inst_tags.isEmpty() ) {
+                        // That was a remote request - we should also update our local instance data.
+                        inst.setTags(inst_tags);
+                    }
+                    getParent().getInventory().update(inst);
+                    msg = "No existing instance found - created: "+inst;
+                    logger.println(msg);
+                    LOGGER.info(msg);
+                    EC2AbstractSlave slave = newOndemandSlave(inst);
+                    slave.setInWarmPool(warm);
+                    slaves.add(slave);
                 }
-                msg = "No existing instance found - created: "+inst;
-                logger.println(msg);
-                LOGGER.info(msg);
-                return newOndemandSlave(inst);
             }
+            return slaves;
+
+        } catch (FormException e) {
+            throw new AssertionError(); // we should have discovered all configuration issues upfront
+        }  catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            msg = "Found existing stopped instance: "+existingInstance;
+    /**
+     * Starts the given stopped instances with a single request, and returns their slaves,
+     * reusing the Jenkins slaves that still exist for them.
+     */
+    private List<EC2AbstractSlave> startExistingInstances(AmazonEC2 ec2, List<Instance> existingInstances, PrintStream logger) throws FormException, IOException {
+        List<String> instances = new ArrayList<String>();
+        for (Instance existingInstance : existingInstances) {
+            String msg = "Found existing stopped instance: "+existingInstance;
             logger.println(msg);
             LOGGER.info(msg);
-
-            List<String> instances = new ArrayList<String>();
             instances.add(existingInstance.getInstanceId());
-            StartInstancesRequest siRequest = new StartInstancesRequest(instances);
-            StartInstancesResult siResult = ec2.startInstances(siRequest);
+        }
+        StartInstancesRequest siRequest = new StartInstancesRequest(instances);
+        StartInstancesResult siResult = ec2.startInstances(siRequest);
 
-            msg = "Starting existing instance: "+existingInstance+ " result:"+siResult;
-            logger.println(msg);
-            LOGGER.fine(msg);
+        String msg = "Starting existing instances: "+instances+ " result:"+siResult;
+        logger.println(msg);
+        LOGGER.fine(msg);
+
+        List<String> warmInstances = new ArrayList<String>();
+        for (Instance existingInstance : existingInstances) {
+            if (isWarm(existingInstance)) {
+                warmInstances.add(existingInstance.getInstanceId());
+            }
+        }
+        if (!warmInstances.isEmpty()) {
+            // taken out of the pool, so that the maintainer replaces them
+            try {
+                ec2.deleteTags(new DeleteTagsRequest(warmInstances).withTags(new Tag(EC2Tag.TAG_NAME_JENKINS_WARM_POOL)));
+            } catch (AmazonClientException e) {
+                LOGGER.log(Level.WARNING, "Failed to take " + warmInstances + " out of the warm pool of " + getDisplayName(), e);
+            }
+        }
+
+        List<EC2AbstractSlave> slaves = new ArrayList<EC2AbstractSlave>(existingInstances.size());
+        existingInstanceLoop:
+        for (Instance existingInstance : existingInstances) {
+            if (isWarm(existingInstance)) {
+                List<Tag> remaining = new ArrayList<Tag>();
+                for (Tag t : existingInstance.getTags()) {
+                    if (!EC2Tag.TAG_NAME_JENKINS_WARM_POOL.equals(t.getKey()))
+                        remaining.add(t);
+                }
+                existingInstance.setTags(remaining);
+                getParent().getInventory().update(existingInstance);
+            }
+            getParent().getInventory().updateState(existingInstance.getInstanceId(), InstanceStateName.Pending);
 
             for (EC2AbstractSlave ec2Node: NodeIterator.nodes(EC2AbstractSlave.class)){
                 if (ec2Node.getInstanceId().equals(existingInstance.getInstanceId())) {
                     msg = "Found existing corresponding Jenkins slave: "+ec2Node;
                     logger.println(msg);
                     LOGGER.finer(msg);
-                    return ec2Node;
+                    if (ec2Node.isInWarmPool()) {
+                        ec2Node.setInWarmPool(false);
+                        Hudson.getInstance().save();
+                        Computer c = ec2Node.toComputer();
+                        if (c != null && c.getOfflineCause() == EC2WarmPoolMaintainer.WARM_POOL_OFFLINE_CAUSE) {
+                            // kept from taking builds while it was in the pool
+                            c.setTemporarilyOffline(false, null);
+                        }
+                    }
+                    slaves.add(ec2Node);
+                    continue existingInstanceLoop;
                 }
             }
 
@@ -473,13 +744,26 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             msg = "Creating new Jenkins slave for existing instance: "+existingInstance;
             logger.println(msg);
             LOGGER.info(msg);
-            return newOndemandSlave(existingInstance);
+            slaves.add(newOndemandSlave(existingInstance));
+        }
+        return slaves;
+    }
 
-        } catch (FormException e) {
-            throw new AssertionError(); // we should have discovered all configuration issues upfront
-        }  catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    /**
+     * Orders the instances of the warm pool first, as it is there to be drawn from before anything else.
+     */
+    static final Comparator<Instance> WARM_FIRST = new Comparator<Instance>() {
+        public int compare(Instance a, Instance b) {
+            return (isWarm(b) ? 1 : 0) - (isWarm(a) ? 1 : 0);
+        }
+    };
+
+    private static boolean isWarm(Instance instance) {
+        for (Tag t : instance.getTags()) {
+            if (EC2Tag.TAG_NAME_JENKINS_WARM_POOL.equals(t.getKey()))
+                return true;
         }
+        return false;
     }
 
     private void setupEphemeralDeviceMapping(RunInstancesRequest riRequest) {
@@ -521,15 +805,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
          * AmazonEC2#describeImageAttribute does not work due to a bug
          * https://forums.aws.amazon.com/message.jspa?messageID=231972
          */
-        for (final Image image: getParent().connect().describeImages().getImages()) {
-
-            if (ami.equals(image.getImageId())) {
-
-                return image.getBlockDeviceMappings();
-            }
-        }
-
-        throw new AmazonClientException("Unable to get AMI device mapping for " + ami);
+        return getParent().getAmiMetadata().getBlockDeviceMappings(ami);
     }
 
     private void setupCustomDeviceMapping(RunInstancesRequest riRequest) {
@@ -547,7 +823,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
         try{
             logger.println("Launching " + ami + " for template " + description);
-            KeyPair keyPair = getKeyPair(ec2);
+            KeyPair keyPair = getKeyPair();
 
             RequestSpotInstancesRequest spotRequest = new RequestSpotInstancesRequest();
 
@@ -666,7 +942,13 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             spotRequest.setLaunchSpecification(launchSpecification);
 
             // Make the request for a new Spot instance
-            RequestSpotInstancesResult reqResult = ec2.requestSpotInstances(spotRequest);
+            RequestSpotInstancesResult reqResult;
+            try {
+                reqResult = ec2.requestSpotInstances(spotRequest);
+            } catch (AmazonClientException e) {
+                checkKeyPairNotFound(e);
+                throw e;
+            }
 
             List<SpotInstanceRequest> reqInstances = reqResult.getSpotInstanceRequests();
             if (reqInstances.size() <= 0){
@@ -719,14 +1001,24 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     /**
      * Get a KeyPair from the configured information for the slave template
      */
-    private KeyPair getKeyPair(AmazonEC2 ec2) throws IOException, AmazonClientException{
-        KeyPair keyPair = parent.getPrivateKey().find(ec2);
+    private KeyPair getKeyPair() throws IOException, AmazonClientException{
+        KeyPair keyPair = parent.getKeyPair();
         if(keyPair==null) {
             throw new AmazonClientException("No matching keypair found on EC2. Is the EC2 private key a valid one?");
         }
         return keyPair;
     }
 
+    /**
+     * Drops the cached key pair if EC2 rejected a request because the key pair is gone,
+     * so that the next launch looks it up again.
+     */
+    private void checkKeyPairNotFound(AmazonClientException e) {
+        if (e instanceof AmazonServiceException && "InvalidKeyPair.NotFound".equals(((AmazonServiceException) e).getErrorCode())) {
+            parent.invalidateKeyPair();
+        }
+    }
+
     /**
      * Update the tags stored in EC2 with the specified information
      */
@@ -737,31 +1029,42 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     }
 
     /**
-     * Get a list of security group ids for the slave
+     * Get a list of security group ids for the slave.
+     * Resolved groups are cached by the cloud, see {@link EC2Cloud#getSecurityGroupCache()}.
      */
     private List<String> getEc2SecurityGroups(AmazonEC2 ec2) throws AmazonClientException{
-        List<String> group_ids = new ArrayList<String>();
+        SecurityGroupCache cache = getParent().getSecurityGroupCache();
+        List<String> group_ids = cache.get(getSubnetId(), securityGroupSet);
+        if (group_ids != null) {
+            return group_ids;
+        }
+
+        group_ids = new ArrayList<String>();
 
         DescribeSecurityGroupsResult group_result = getSecurityGroupsBy("group-name", securityGroupSet, ec2);
         if (group_result.getSecurityGroups().size() == 0) {
             group_result = getSecurityGroupsBy("group-id", securityGroupSet, ec2);
         }
 
+        // the groups have to be in the VPC of our subnet
+        List<Filter> filters = new ArrayList<Filter>();
+        filters.add(new Filter("state").withValues("available"));
+        filters.add(new Filter("subnet-id").withValues(getSubnetId()));
+
+        DescribeSubnetsRequest subnet_req = new DescribeSubnetsRequest();
+        subnet_req.withFilters(filters);
+        DescribeSubnetsResult subnet_result = ec2.describeSubnets(subnet_req);
+
+        Set<String> vpc_ids = new HashSet<String>();
+        if (subnet_result.getSubnets() != null) {
+            for (Subnet subnet : subnet_result.getSubnets()) {
+                vpc_ids.add(subnet.getVpcId());
+            }
+        }
+
         for (SecurityGroup group : group_result.getSecurityGroups()) {
-            if (group.getVpcId() != null && !group.getVpcId().isEmpty()) {
-                List<Filter> filters = new ArrayList<Filter>();
-                filters.add(new Filter("vpc-id").withValues(group.getVpcId()));
-                filters.add(new Filter("state").withValues("available"));
-                filters.add(new Filter("subnet-id").withValues(getSubnetId()));
-
-                DescribeSubnetsRequest subnet_req = new DescribeSubnetsRequest();
-                subnet_req.withFilters(filters);
-                DescribeSubnetsResult subnet_result = ec2.describeSubnets(subnet_req);
-
-                List<Subnet> subnets = subnet_result.getSubnets();
-                if(subnets != null && !subnets.isEmpty()) {
-                    group_ids.add(group.getGroupId());
-                }
+            if (group.getVpcId() != null && !group.getVpcId().isEmpty() && vpc_ids.contains(group.getVpcId())) {
+                group_ids.add(group.getGroupId());
             }
         }
 
@@ -769,6 +1072,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             throw new AmazonClientException( "Security groups must all be VPC security groups to work in a VPC context" );
         }
 
+        cache.put(getSubnetId(), securityGroupSet, group_ids);
         return group_ids;
     }
 
@@ -819,6 +1123,13 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         if (amiType == null) {
         	amiType = new UnixData(rootCommandPrefix, sshPort);
         }
+
+        try {
+            minIdleTimes = TimeOfDaySchedule.parse(minIdleSchedule);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warning("Ignoring the minimum idle executors of " + description + ": " + e.getMessage());
+            minIdleTimes = null;
+        }
         return this;
     }
 
@@ -951,6 +1262,35 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             return FormValidation.error("InstanceCap must be a non-negative integer (or null)");
         }
 
+        public FormValidation doCheckWarmPoolSizeStr(@QueryParameter String value) {
+            value = Util.fixEmptyAndTrim(value);
+            if (value == null) return FormValidation.ok();
+            try {
+                int val = Integer.parseInt(value);
+                if (val >= 0) return FormValidation.ok();
+            } catch ( NumberFormatException nfe ) {}
+            return FormValidation.error("Warm pool size must be a non-negative integer (or null)");
+        }
+
+        public FormValidation doCheckMinIdleExecutorsStr(@QueryParameter String value) {
+            value = Util.fixEmptyAndTrim(value);
+            if (value == null) return FormValidation.ok();
+            try {
+                int val = Integer.parseInt(value);
+                if (val >= 0) return FormValidation.ok();
+            } catch ( NumberFormatException nfe ) {}
+            return FormValidation.error("Minimum idle executors must be a non-negative integer (or null)");
+        }
+
+        public FormValidation doCheckMinIdleSchedule(@QueryParameter String value) {
+            try {
+                TimeOfDaySchedule.parse(value);
+                return FormValidation.ok();
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
         public FormValidation doCheckLaunchTimeoutStr(@QueryParameter String value) {
             if (value == null || value.trim() == "") return FormValidation.ok();
             try {
@@ -28,15 +28,21 @@ import hudson.ProxyConfiguration;
 import hudson.model.Descriptor;
 import hudson.plugins.ec2.EC2Computer;
 import hudson.plugins.ec2.EC2ComputerLauncher;
+import hudson.plugins.ec2.LaunchTimer;
+import hudson.plugins.ec2.util.PortProbe;
+import hudson.plugins.ec2.util.SlaveJarCache;
 import hudson.remoting.Channel;
 import hudson.remoting.Channel.Listener;
 import hudson.slaves.ComputerLauncher;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.URL;
+import java.util.Locale;
+import java.util.logging.Logger;
 
 import jenkins.model.Jenkins;
 import jenkins.slaves.JnlpSlaveAgentProtocol;
@@ -63,6 +69,16 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
     private final int FAILED=-1;
     private final int SAMEUSER=0;
     private final int RECONNECT=-2;
+
+    /**
+     * Milliseconds between the first checks whether sshd is up, growing by half each time up to
+     * {@link #PROBE_MAX_DELAY}.
+     */
+    private static final long PROBE_MIN_DELAY = Long.getLong("jenkins.ec2.sshProbeMinDelay", 500);
+
+    private static final long PROBE_MAX_DELAY = Long.getLong("jenkins.ec2.sshProbeMaxDelay", 5000);
+
+    private static final Logger LOGGER = Logger.getLogger(EC2UnixLauncher.class.getName());
     
     protected String buildUpCommand(EC2Computer computer, String command) {
     	if (!computer.getRemoteAdmin().equals("root")) {
@@ -81,6 +97,7 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
         
         try {
             bootstrapConn = connectToSsh(computer, logger);
+            computer.markLaunchPhase(LaunchTimer.Phase.REMOTE);
             int bootstrapResult = bootstrap(bootstrapConn, computer, logger);
             if (bootstrapResult == FAILED) {
             	logger.println("bootstrapresult failed");
@@ -132,6 +149,7 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
                 sess.requestDumbPTY(); // so that the remote side bundles stdout and stderr
                 sess.execCommand(buildUpCommand(computer, "touch ~/.hudson-run-init"));
                 sess.close();
+                computer.markLaunchPhase(LaunchTimer.Phase.INIT);
             }
 
             // TODO: parse the version number. maven-enforcer-plugin might help
@@ -163,10 +181,14 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
             // TODO: on Windows with ec2-sshd, this scp command ends up just putting slave.jar as c:\tmp
             // bug in ec2-sshd?
 
-            logger.println("Copying slave.jar");
-            scp.put(Jenkins.getInstance().getJnlpJars("slave.jar").readFully(),
-                    "slave.jar","/tmp");
-            logger.println("slave.jar copied");
+            SlaveJarCache slaveJar = SlaveJarCache.get();
+            if (isCopied(conn, slaveJar, "/tmp/slave.jar")) {
+                logger.println("slave.jar is up to date");
+            } else {
+                logger.println("Copying slave.jar");
+                scp.put(slaveJar.getBytes(), "slave.jar", "/tmp");
+                logger.println("slave.jar copied");
+            }
 
             boolean useJnlp = computer.getNode().useJnlp;
             String jvmOpts = computer.getNode().jvmopts;
@@ -222,6 +244,18 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
         }
     }
 
+    /**
+     * Whether the file on the instance already is the given jar, as is the case when reconnecting
+     * to an instance that was rebooted or restarted.
+     */
+    private boolean isCopied(Connection conn, SlaveJarCache jar, String path) throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // whichever of these the instance has
+        int status = conn.exec("sha1sum " + path + " 2>/dev/null || shasum " + path + " 2>/dev/null || openssl sha1 " + path
+                + " 2>/dev/null", out);
+        return status == 0 && out.toString("US-ASCII").toLowerCase(Locale.ENGLISH).contains(jar.getSha1());
+    }
+
     private int bootstrap(Connection bootstrapConn, EC2Computer computer, PrintStream logger) throws IOException, InterruptedException, AmazonClientException {
         logger.println("bootstrap()" );
         boolean closeBootstrap = true;
@@ -255,6 +289,10 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
     private Connection connectToSsh(EC2Computer computer, PrintStream logger) throws AmazonClientException, InterruptedException {
         final long timeout = computer.getNode().getLaunchTimeoutInMillis();
         final long startTime = System.currentTimeMillis();
+        Integer slaveConnectTimeout = Integer.getInteger("jenkins.ec2.slaveConnectTimeout", 10000);
+        long delay = PROBE_MIN_DELAY;
+        // the description the instance was launched with is good enough, as long as it has an address
+        Instance instance = computer.describeInstance();
         while(true) {
             try {
                 long waitTime = System.currentTimeMillis() - startTime;
@@ -262,32 +300,34 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
                 {
                     throw new AmazonClientException("Timed out after "+ (waitTime / 1000) + " seconds of waiting for ssh to become available. (maximum timeout configured is "+ (timeout / 1000) + ")" );
                 }
-                Instance instance = computer.updateInstanceDescription();
-                String vpc_id = instance.getVpcId();
-                String host;
-
-                if (computer.getNode().usePrivateDnsName) {
-                    host = instance.getPrivateDnsName();
-                } else {
-                    host = instance.getPublicDnsName();
-                    // If we fail to get a public DNS name, use the private IP.
-                    if (host == null || host.equals("")) {
-                        host = instance.getPrivateIpAddress();
-                    }
+                String host = getHost(computer, instance);
+                if (host == null || host.equals("") || "0.0.0.0".equals(host)) {
+                    instance = computer.updateInstanceDescription();
+                    host = getHost(computer, instance);
                 }
 
-                if ("0.0.0.0".equals(host)) {
-                    logger.println("Invalid host 0.0.0.0, your host is most likely waiting for an ip address.");
+                if (host == null || host.equals("") || "0.0.0.0".equals(host)) {
+                    logger.println("Invalid host " + host + ", your host is most likely waiting for an ip address.");
                     throw new IOException("goto sleep");
                 }
 
                 int port = computer.getSshPort();
-                Integer slaveConnectTimeout = Integer.getInteger("jenkins.ec2.slaveConnectTimeout", 10000);
-                logger.println("Connecting to " + host + " on port " + port + ", with timeout " + slaveConnectTimeout + ".");
-                Connection conn = new Connection(host, port);
                 ProxyConfiguration proxyConfig = Jenkins.getInstance().proxy;
                 Proxy proxy = proxyConfig == null ? Proxy.NO_PROXY : proxyConfig.createProxy(host);
-                if (! proxy.equals(Proxy.NO_PROXY) && proxy.address() instanceof InetSocketAddress) {
+                boolean proxied = ! proxy.equals(Proxy.NO_PROXY) && proxy.address() instanceof InetSocketAddress;
+
+                // a handshake against a port nobody listens on yet only costs time; we may not be able to
+                // reach the port directly through a proxy though
+                if (! proxied && ! PortProbe.isOpen(host, port, slaveConnectTimeout)) {
+                    logger.println("Waiting for " + host + " to accept connections on port " + port + ". Sleeping " + delay + "ms.");
+                    Thread.sleep(delay);
+                    delay = Math.min(PROBE_MAX_DELAY, delay * 3 / 2);
+                    continue;
+                }
+
+                logger.println("Connecting to " + host + " on port " + port + ", with timeout " + slaveConnectTimeout + ".");
+                Connection conn = new Connection(host, port);
+                if (proxied) {
                     InetSocketAddress address = (InetSocketAddress) proxy.address();
                     HTTPProxyData proxyData = null;
                     if (null != proxyConfig.getUserName()) {
@@ -304,16 +344,31 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
                         return true;
                     }
                 }, slaveConnectTimeout, slaveConnectTimeout);
-                logger.println("Connected via SSH.");
+                long readyTime = System.currentTimeMillis() - startTime;
+                logger.println("Connected via SSH after " + readyTime + "ms.");
+                LOGGER.fine("Connected to " + computer.getInstanceId() + " via SSH " + readyTime + "ms after it was running");
                 return conn; // successfully connected
             } catch (IOException e) {
                 // keep retrying until SSH comes up
-                logger.println("Waiting for SSH to come up. Sleeping 5.");
-                Thread.sleep(5000);
+                logger.println("Waiting for SSH to come up. Sleeping " + delay + "ms.");
+                Thread.sleep(delay);
+                delay = Math.min(PROBE_MAX_DELAY, delay * 3 / 2);
             }
         }
     }
 
+    private String getHost(EC2Computer computer, Instance instance) {
+        if (computer.getNode().usePrivateDnsName) {
+            return instance.getPrivateDnsName();
+        }
+        String host = instance.getPublicDnsName();
+        // If we fail to get a public DNS name, use the private IP.
+        if (host == null || host.equals("")) {
+            host = instance.getPrivateIpAddress();
+        }
+        return host;
+    }
+
     private int waitCompletion(Session session) throws InterruptedException {
         // I noticed that the exit status delivery often gets delayed. Wait up to 1 sec.
         for( int i=0; i<10; i++ ) {
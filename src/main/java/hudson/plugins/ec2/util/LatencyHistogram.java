@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations in milliseconds, which threads can record into without locking.
+ *
+ * <p>
+ * Durations are counted in buckets of logarithmic width: exact up to 16ms, and from there on 8 buckets
+ * per power of two, so percentiles are reported within 12.5% of the recorded value whatever the scale,
+ * from a millisecond to days, in a few kilobytes.
+ */
+public final class LatencyHistogram {
+    /* values below this get a bucket each */
+    private static final int LINEAR = 16;
+
+    /* log2 of the number of buckets per power of two above LINEAR */
+    private static final int SUB_BITS = 3;
+
+    private static final int BUCKETS = LINEAR + (Long.SIZE - 1 - 4) * (1 << SUB_BITS);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long millis) {
+        if (millis < 0)
+            millis = 0;
+        counts.incrementAndGet(bucket(millis));
+        count.incrementAndGet();
+        total.addAndGet(millis);
+        for (long m; millis > (m = max.get());) {
+            if (max.compareAndSet(m, millis))
+                break;
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * The duration the given fraction (such as 0.99) of the recorded ones didn't exceed, rounded up to
+     * the end of its bucket; 0 if nothing was recorded.
+     */
+    public long getPercentile(double fraction) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBound(i), max.get());
+        }
+        // records made while we were counting
+        return max.get();
+    }
+
+    static int bucket(long value) {
+        if (value < LINEAR)
+            return (int) value;
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return LINEAR + ((exponent - 4) << SUB_BITS) + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR)
+            return bucket;
+        int exponent = ((bucket - LINEAR) >> SUB_BITS) + 4;
+        int sub = (bucket - LINEAR) & ((1 << SUB_BITS) - 1);
+        long width = 1L << (exponent - SUB_BITS);
+        return ((1 << SUB_BITS) + sub) * width + width - 1;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks whether a port accepts connections, without going through a protocol handshake. Used to find
+ * out cheaply when the daemon on a freshly started instance is up.
+ */
+public final class PortProbe {
+    private static final Logger LOGGER = Logger.getLogger(PortProbe.class.getName());
+
+    private PortProbe() {
+    }
+
+    /**
+     * Whether something accepts connections on the given port within the timeout. Refused connections,
+     * unreachable hosts and names that don't resolve yet all count as closed.
+     */
+    public static boolean isOpen(String host, int port, int timeoutMillis) throws InterruptedException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved())
+            return false;
+
+        SocketChannel channel = null;
+        Selector selector = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(address))
+                return true;
+
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_CONNECT);
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            for (long left = timeoutMillis; left > 0; left = deadline - System.currentTimeMillis()) {
+                if (selector.select(left) > 0) {
+                    if (channel.finishConnect())
+                        return true;
+                    selector.selectedKeys().clear();
+                }
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+            return false;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINEST, host + ":" + port + " is not accepting connections", e);
+            return false;
+        } finally {
+            close(selector);
+            close(channel);
+        }
+    }
+
+    private static void close(Selector selector) {
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
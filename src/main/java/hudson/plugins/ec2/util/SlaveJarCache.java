@@ -0,0 +1,79 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2.util;
+
+import hudson.Util;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import jenkins.model.Jenkins;
+
+/**
+ * The slave.jar to copy onto the instances, read and hashed once rather than on each launch.
+ * The jar can't change while Jenkins runs.
+ */
+public final class SlaveJarCache {
+    private static volatile SlaveJarCache instance;
+
+    private final byte[] bytes;
+    private final String sha1;
+
+    SlaveJarCache(byte[] bytes) {
+        this.bytes = bytes;
+        try {
+            this.sha1 = Util.toHexString(MessageDigest.getInstance("SHA-1").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public static SlaveJarCache get() throws IOException {
+        SlaveJarCache c = instance;
+        if (c == null) {
+            synchronized (SlaveJarCache.class) {
+                c = instance;
+                if (c == null) {
+                    instance = c = new SlaveJarCache(Jenkins.getInstance().getJnlpJars("slave.jar").readFully());
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * The content of the jar; not to be modified.
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Lower case hex SHA-1 of the jar, as printed by {@code sha1sum}.
+     */
+    public String getSha1() {
+        return sha1;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2.util;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Times of the day during which something applies, written as comma separated ranges of the
+ * server's local time such as {@code 07:00-19:00} or {@code 22:00-02:00, 12:00-13:00}. A range
+ * that ends before it starts runs over midnight. An empty schedule applies all day.
+ */
+public final class TimeOfDaySchedule {
+    private static final Pattern RANGE = Pattern.compile("(\\d{1,2}):(\\d{2})\\s*-\\s*(\\d{1,2}):(\\d{2})");
+
+    public static final TimeOfDaySchedule ALWAYS = new TimeOfDaySchedule(Collections.<int[]>emptyList());
+
+    /* start and end minute of the day of each range, end exclusive */
+    private final List<int[]> ranges;
+
+    private TimeOfDaySchedule(List<int[]> ranges) {
+        this.ranges = ranges;
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the schedule isn't well formed.
+     */
+    public static TimeOfDaySchedule parse(String spec) {
+        if (spec == null || spec.trim().length() == 0)
+            return ALWAYS;
+
+        List<int[]> ranges = new ArrayList<int[]>();
+        for (String part : spec.split(",", -1)) {
+            Matcher m = RANGE.matcher(part.trim());
+            if (!m.matches())
+                throw new IllegalArgumentException("Not a time range like 07:00-19:00: " + part.trim());
+            ranges.add(new int[] {minute(m.group(1), m.group(2)), minute(m.group(3), m.group(4))});
+        }
+        return new TimeOfDaySchedule(ranges);
+    }
+
+    private static int minute(String hours, String minutes) {
+        int h = Integer.parseInt(hours), m = Integer.parseInt(minutes);
+        if (h > 24 || m > 59 || (h == 24 && m > 0))
+            throw new IllegalArgumentException("Not a time of the day: " + hours + ":" + minutes);
+        return h * 60 + m;
+    }
+
+    /**
+     * Whether the schedule applies at the given time.
+     */
+    public boolean isActive(Calendar time) {
+        if (ranges.isEmpty())
+            return true;
+        int minute = time.get(Calendar.HOUR_OF_DAY) * 60 + time.get(Calendar.MINUTE);
+        for (int[] r : ranges) {
+            if (r[0] <= r[1] ? r[0] <= minute && minute < r[1] : r[0] <= minute || minute < r[1])
+                return true;
+        }
+        return false;
+    }
+
+    public boolean isActiveNow() {
+        return isActive(Calendar.getInstance());
+    }
+}
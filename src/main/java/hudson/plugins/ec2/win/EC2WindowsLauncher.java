@@ -3,6 +3,8 @@ package hudson.plugins.ec2.win;
 import hudson.model.Descriptor;
 import hudson.plugins.ec2.EC2Computer;
 import hudson.plugins.ec2.EC2ComputerLauncher;
+import hudson.plugins.ec2.LaunchTimer;
+import hudson.plugins.ec2.util.SlaveJarCache;
 import hudson.plugins.ec2.win.winrm.WindowsProcess;
 import hudson.remoting.Channel;
 import hudson.remoting.Channel.Listener;
@@ -30,13 +32,14 @@ public class EC2WindowsLauncher extends EC2ComputerLauncher {
     protected void launch(EC2Computer computer, PrintStream logger, Instance inst) throws IOException, AmazonClientException,
     InterruptedException {
         final WinConnection connection = connectToWinRM(computer, logger);
+        computer.markLaunchPhase(LaunchTimer.Phase.REMOTE);
 
         try {
             String initScript = computer.getNode().initScript;
             String tmpDir = (computer.getNode().tmpDir != null ? computer.getNode().tmpDir : "C:\\Windows\\Temp\\");
             
             logger.println("Creating tmp directory if it does not exist");
-            connection.execute("if not exist " + tmpDir + " mkdir " + tmpDir);
+            connection.execute("if not exist " + tmpDir + " mkdir " + tmpDir).waitFor();
             
             if(initScript!=null && initScript.trim().length()>0 && !connection.exists(tmpDir + ".jenkins-init")) {
                 logger.println("Executing init script");
@@ -55,11 +58,12 @@ public class EC2WindowsLauncher extends EC2ComputerLauncher {
                 OutputStream initGuard = connection.putFile(tmpDir + ".jenkins-init");
                 initGuard.write("init ran".getBytes());
                 logger.println("init script failed ran successfully");
+                computer.markLaunchPhase(LaunchTimer.Phase.INIT);
             }
             
             OutputStream slaveJar = connection.putFile("C:\\Windows\\Temp\\slave.jar");
             try {
-                slaveJar.write(Jenkins.getInstance().getJnlpJars("slave.jar").readFully());
+                slaveJar.write(SlaveJarCache.get().getBytes());
             }
             finally {
                 slaveJar.close();
@@ -120,8 +124,8 @@ public class EC2WindowsLauncher extends EC2ComputerLauncher {
         final long timeout = computer.getNode().getLaunchTimeoutInMillis();
         final long startTime = System.currentTimeMillis();
         
-        logger.println(computer.getNode().getDisplayName() + " booted at " + computer.getNode().getCreatedTime());
-        boolean alreadyBooted = (startTime - computer.getNode().getCreatedTime()) > TimeUnit.MINUTES.toMillis(3);
+        logger.println(computer.getNode().getDisplayName() + " booted at " + computer.describeInstance().getLaunchTime());
+        boolean alreadyBooted = computer.getUptime() > TimeUnit.MINUTES.toMillis(3);
         while (true) {
             try {
                 long waitTime = System.currentTimeMillis() - startTime;
@@ -1,5 +1,6 @@
 package hudson.plugins.ec2.win;
 
+import hudson.plugins.ec2.win.winrm.ShellPool;
 import hudson.plugins.ec2.win.winrm.WinRM;
 import hudson.plugins.ec2.win.winrm.WindowsProcess;
 
@@ -31,6 +32,9 @@ public class WinConnection {
 
     private boolean useHTTPS;
 
+    /* shells kept open between the commands run over this connection */
+    private ShellPool shells;
+
     public WinConnection(String host, String username, String password) {
         this.host = host;
         this.username = username;
@@ -55,7 +59,14 @@ public class WinConnection {
     }
 
     public WindowsProcess execute(String commandLine, int timeout) {
-        return winrm(timeout).execute(commandLine);
+        return shells().execute(commandLine, timeout);
+    }
+
+    private synchronized ShellPool shells() {
+        if (shells == null) {
+            shells = new ShellPool(winrm());
+        }
+        return shells;
     }
 
     public OutputStream putFile(String path) throws IOException {
@@ -114,19 +125,27 @@ public class WinConnection {
     public boolean ping() {
         log.log(Level.FINE, "pinging " + host);
         try {
-            winrm().ping();
+            shells().ping();
             SmbFile test = new SmbFile(encodeForSmb("C:\\"), authentication);
             test.connect();
             return true;
         } catch (Exception e) {
+            close();
             return false;
         }
     }
 
-    public void close() {
+    public synchronized void close() {
+        if (shells != null) {
+            shells.close();
+            shells = null;
+        }
     }
 
     public void setUseHTTPS(boolean useHTTPS) {
+        if (useHTTPS != this.useHTTPS) {
+            close();
+        }
         this.useHTTPS = useHTTPS;
     }
 
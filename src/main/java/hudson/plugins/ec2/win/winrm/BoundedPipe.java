@@ -0,0 +1,219 @@
+package hudson.plugins.ec2.win.winrm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * In-memory pipe over a fixed size ring buffer, used to hand a process' streams between the
+ * threads polling WinRM and the caller.
+ *
+ * <p>
+ * Unlike {@link java.io.PipedInputStream}, neither end is tied to the thread that used it first:
+ * any thread may read or write, a reader is woken as soon as data arrives rather than polling,
+ * and a read returns everything buffered so far (up to the length asked for), so that a reader with
+ * a large buffer collects small writes into one chunk.
+ */
+public class BoundedPipe {
+    private final byte[] buffer;
+
+    /* index of the next byte to read, and number of buffered bytes */
+    private int head, count;
+
+    private boolean writerClosed, readerClosed;
+
+    /* told about writes, so that the reading end can be driven by events rather than by a blocked thread */
+    private final Runnable writeListener;
+
+    private final InputStream source = new Source();
+    private final OutputStream sink = new Sink();
+
+    public BoundedPipe(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param writeListener
+     *            run by the writing thread after each write, and when the writing end is closed.
+     */
+    public BoundedPipe(int capacity, Runnable writeListener) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        this.buffer = new byte[capacity];
+        this.writeListener = writeListener;
+    }
+
+    /**
+     * The reading end; closing it makes writes fail.
+     */
+    public InputStream getSource() {
+        return source;
+    }
+
+    /**
+     * The writing end; closing it makes reads return end of stream once the buffer is drained.
+     */
+    public OutputStream getSink() {
+        return sink;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        while (count == 0) {
+            if (readerClosed)
+                throw new IOException("Pipe closed");
+            if (writerClosed)
+                return -1;
+            await();
+        }
+        return take(b, off, len);
+    }
+
+    /**
+     * Reads what is buffered without waiting: returns 0 if nothing is, -1 at the end of the stream.
+     */
+    public synchronized int readAvailable(byte[] b, int off, int len) throws IOException {
+        if (count == 0) {
+            if (readerClosed)
+                throw new IOException("Pipe closed");
+            return writerClosed ? -1 : 0;
+        }
+        return take(b, off, len);
+    }
+
+    /**
+     * Whether {@link #readAvailable(byte[], int, int)} would return anything but 0.
+     */
+    public synchronized boolean isReadable() {
+        return count > 0 || writerClosed || readerClosed;
+    }
+
+    private int take(byte[] b, int off, int len) throws IOException {
+        if (readerClosed)
+            throw new IOException("Pipe closed");
+
+        int n = Math.min(len, count);
+        int first = Math.min(n, buffer.length - head);
+        System.arraycopy(buffer, head, b, off, first);
+        System.arraycopy(buffer, 0, b, off + first, n - first);
+        head = (head + n) % buffer.length;
+        count -= n;
+        notifyAll();
+        return n;
+    }
+
+    /**
+     * Writes as much as fits, waiting only while nothing does.
+     */
+    private synchronized int write(byte[] b, int off, int len) throws IOException {
+        while (true) {
+            if (writerClosed)
+                throw new IOException("Pipe closed");
+            if (readerClosed)
+                throw new IOException("Pipe broken");
+            if (count < buffer.length)
+                break;
+            await();
+        }
+        int written = 0;
+        while (written < len && count < buffer.length) {
+            int tail = (head + count) % buffer.length;
+            int n = Math.min(len - written, Math.min(buffer.length - count, buffer.length - tail));
+            System.arraycopy(b, off + written, buffer, tail, n);
+            count += n;
+            written += n;
+        }
+        notifyAll();
+        return written;
+    }
+
+    private synchronized int available() {
+        return count;
+    }
+
+    private synchronized void closeWriter() {
+        writerClosed = true;
+        notifyAll();
+    }
+
+    private synchronized void closeReader() {
+        readerClosed = true;
+        count = 0;
+        notifyAll();
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            throw (InterruptedIOException) new InterruptedIOException().initCause(e);
+        }
+    }
+
+    private final class Source extends InputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            synchronized (BoundedPipe.this) {
+                return BoundedPipe.this.read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off)
+                throw new IndexOutOfBoundsException();
+            return BoundedPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return BoundedPipe.this.available();
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    }
+
+    private final class Sink extends OutputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            synchronized (BoundedPipe.this) {
+                single[0] = (byte) b;
+                BoundedPipe.this.write(single, 0, 1);
+            }
+            fireWrite();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off)
+                throw new IndexOutOfBoundsException();
+            while (len > 0) {
+                int n = BoundedPipe.this.write(b, off, len);
+                off += n;
+                len -= n;
+                // the reader may have to drain the buffer before the rest fits
+                fireWrite();
+            }
+        }
+
+        @Override
+        public void close() {
+            closeWriter();
+            fireWrite();
+        }
+
+        private void fireWrite() {
+            if (writeListener != null)
+                writeListener.run();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package hudson.plugins.ec2.win.winrm;
+
+import hudson.plugins.ec2.win.winrm.soap.Namespaces;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pull parser for the responses to Receive requests. Decodes the stdout and stderr chunks straight into the
+ * target streams and picks up the command state and exit code, without building a document.
+ *
+ * <p>
+ * Buffers are reused from one response to the next, so an instance must not be shared between threads.
+ */
+public class ReceiveResponseParser {
+    private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+    static {
+        xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    private static final String SHELL_NS = Namespaces.NS_WIN_SHELL.getURI();
+    private static final String STATE_DONE = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/CommandState/Done";
+
+    private static final byte[] BASE64 = new byte[128];
+    static {
+        Arrays.fill(BASE64, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private char[] text = new char[4096];
+    private int textLength;
+    private byte[] bytes = new byte[3072];
+
+    private boolean done;
+    private int exitCode;
+
+    /**
+     * Parses one Receive response.
+     *
+     * @param encoding the charset of the response, or null to detect it from the XML declaration.
+     * @return true if the command is still running, false if it is done.
+     */
+    public boolean parse(InputStream in, String encoding, OutputStream stdout, OutputStream stderr) throws IOException, XMLStreamException {
+        done = false;
+        XMLStreamReader r = encoding == null ? xmlInputFactory.createXMLStreamReader(in)
+                : xmlInputFactory.createXMLStreamReader(in, encoding);
+        try {
+            while (r.hasNext()) {
+                if (r.next() != XMLStreamConstants.START_ELEMENT)
+                    continue;
+
+                String name = r.getLocalName();
+                if (STATE_DONE.equals(r.getAttributeValue(null, "State"))) {
+                    done = true;
+                }
+                if (!SHELL_NS.equals(r.getNamespaceURI()))
+                    continue;
+
+                if (name.equals("Stream")) {
+                    String streamName = r.getAttributeValue(null, "Name");
+                    OutputStream out = "stdout".equalsIgnoreCase(streamName) ? stdout
+                            : "stderr".equalsIgnoreCase(streamName) ? stderr : null;
+                    readText(r);
+                    int n = decodeText();
+                    if (out != null && n > 0) {
+                        out.write(bytes, 0, n);
+                    }
+                } else if (name.equals("ExitCode")) {
+                    readText(r);
+                    exitCode = Integer.parseInt(new String(text, 0, textLength).trim());
+                }
+            }
+        } finally {
+            r.close();
+        }
+        return !done;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Exit code of the command, valid once {@link #isDone()}.
+     */
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * Collects the text content of the current element into {@link #text}, leaving the reader on its end tag.
+     */
+    private void readText(XMLStreamReader r) throws XMLStreamException {
+        textLength = 0;
+        while (true) {
+            int event = r.next();
+            if (event == XMLStreamConstants.END_ELEMENT)
+                return;
+            if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                    || event == XMLStreamConstants.SPACE) {
+                int length = r.getTextLength();
+                if (textLength + length > text.length) {
+                    text = Arrays.copyOf(text, Math.max(text.length * 2, textLength + length));
+                }
+                System.arraycopy(r.getTextCharacters(), r.getTextStart(), text, textLength, length);
+                textLength += length;
+            }
+        }
+    }
+
+    /**
+     * Decodes the base64 in {@link #text} into {@link #bytes}, skipping whitespace and padding.
+     *
+     * @return the number of decoded bytes.
+     */
+    private int decodeText() {
+        int max = (textLength / 4 + 1) * 3;
+        if (bytes.length < max) {
+            bytes = new byte[Math.max(bytes.length * 2, max)];
+        }
+
+        int out = 0;
+        int bits = 0;
+        int n = 0;
+        for (int i = 0; i < textLength; i++) {
+            char c = text[i];
+            int v = c < 128 ? BASE64[c] : -1;
+            if (v < 0)
+                continue;
+            bits = (bits << 6) | v;
+            if (++n == 4) {
+                bytes[out++] = (byte) (bits >> 16);
+                bytes[out++] = (byte) (bits >> 8);
+                bytes[out++] = (byte) bits;
+                bits = 0;
+                n = 0;
+            }
+        }
+        if (n == 2) {
+            bytes[out++] = (byte) (bits >> 4);
+        } else if (n == 3) {
+            bytes[out++] = (byte) (bits >> 10);
+            bytes[out++] = (byte) (bits >> 2);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,85 @@
+package hudson.plugins.ec2.win.winrm;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * When and how soon failed WinRM requests are retried.
+ *
+ * <p>
+ * Only the requests the server can't have acted on are retried: those it refused to authenticate, and
+ * those that timed out connecting. Other I/O failures may have hit a Send or Command that was already
+ * processed, and failures to connect are left to the callers that wait for an instance to come up, as
+ * they already poll. Retries back off exponentially from {@link #BASE_DELAY} up to {@link #MAX_DELAY},
+ * with jitter so that the agents launched together don't retry in lock step.
+ */
+public final class RetryPolicy {
+    /**
+     * Kinds of failure, as far as retrying is concerned.
+     */
+    public enum Failure {
+        /** the server refused our credentials (401) */
+        AUTH,
+        /** connecting timed out; reads are only bounded by the WinRM operation timeout */
+        TIMEOUT,
+        /** the server couldn't be reached */
+        CONNECT,
+        /** the connection failed otherwise, such as a kept-alive connection reset by the server */
+        IO;
+
+        boolean isRetried() {
+            return this == AUTH || this == TIMEOUT;
+        }
+    }
+
+    /**
+     * How many times a failed request is retried.
+     */
+    static final int MAX_RETRIES = Integer.getInteger("jenkins.ec2.winrm.maxRetries", 3);
+
+    /**
+     * Milliseconds before the first retry; doubled for each further one.
+     */
+    static final long BASE_DELAY = Long.getLong("jenkins.ec2.winrm.retryBaseDelay", 500);
+
+    /**
+     * Upper bound of the delay between retries, in milliseconds.
+     */
+    static final long MAX_DELAY = Long.getLong("jenkins.ec2.winrm.retryMaxDelay", TimeUnit.SECONDS.toMillis(30));
+
+    private static final Random random = new Random();
+
+    private RetryPolicy() {
+    }
+
+    public static Failure classify(Exception e) {
+        if (e instanceof ConnectTimeoutException)
+            return Failure.TIMEOUT;
+        if (e instanceof ConnectException || e instanceof NoRouteToHostException || e instanceof UnknownHostException)
+            return Failure.CONNECT;
+        return Failure.IO;
+    }
+
+    /**
+     * Whether a request that failed on the given (0-based) attempt is tried again.
+     */
+    public static boolean shouldRetry(Failure failure, int attempt) {
+        return failure.isRetried() && attempt < MAX_RETRIES;
+    }
+
+    /**
+     * Milliseconds to wait before retrying a request that failed on the given (0-based) attempt:
+     * somewhere between half and all of the exponential backoff.
+     */
+    public static long delay(int attempt) {
+        long backoff = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempt, 20));
+        synchronized (random) {
+            return backoff / 2 + (long) (random.nextDouble() * (backoff - backoff / 2));
+        }
+    }
+}
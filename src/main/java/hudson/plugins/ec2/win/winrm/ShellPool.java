@@ -0,0 +1,155 @@
+package hudson.plugins.ec2.win.winrm;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remote shells of one WinRM endpoint kept open between commands.
+ *
+ * <p>
+ * Opening and deleting a shell costs two round trips and a process spawn on the Windows side, so
+ * a command that completes hands its shell back here ({@link WindowsProcess#waitFor()}) and the next
+ * command runs in the same shell. Shells left idle for too long may have been expired by the
+ * server; they are deleted instead of reused, and a command that fails to start in a reused shell is
+ * retried once in a new one.
+ */
+public class ShellPool {
+    private static final Logger log = Logger.getLogger(ShellPool.class.getName());
+
+    /**
+     * Maximum number of idle shells kept per endpoint.
+     */
+    private static final int MAX_IDLE_SHELLS = Integer.getInteger("jenkins.ec2.winrm.maxIdleShells", 1);
+
+    /**
+     * Milliseconds after which an idle shell is no longer reused. Well below the default idle
+     * timeout of the WinRM service, so that we don't run into shells the server has dropped.
+     */
+    private static final long SHELL_IDLE_TIMEOUT = Long.getLong("jenkins.ec2.winrm.shellIdleTimeout", TimeUnit.SECONDS.toMillis(60));
+
+    private final WinRM winrm;
+
+    /* most recently used last */
+    private final LinkedList<IdleShell> idle = new LinkedList<IdleShell>();
+
+    private boolean closed;
+
+    public ShellPool(WinRM winrm) {
+        this.winrm = winrm;
+    }
+
+    /**
+     * Checks that the endpoint accepts shells by opening one, which is then kept for the next command.
+     */
+    public void ping() throws IOException {
+        release(open());
+    }
+
+    public WindowsProcess execute(String commandLine, int timeout) {
+        WinRMClient client = poll();
+        try {
+            if (client != null) {
+                try {
+                    client.setTimeout(WinRM.secToDuration(timeout));
+                    client.executeCommand(commandLine);
+                    log.log(Level.FINE, "reused winrm shell for " + commandLine);
+                    return new WindowsProcess(client, commandLine, this);
+                } catch (RuntimeException e) {
+                    log.log(Level.FINE, "reused winrm shell failed, opening a new one", e);
+                    discard(client);
+                }
+            }
+            client = open();
+            client.setTimeout(WinRM.secToDuration(timeout));
+            client.executeCommand(commandLine);
+            return new WindowsProcess(client, commandLine, this);
+        } catch (IOException exc) {
+            throw new RuntimeException("Cannot execute command " + commandLine + " on " + winrm.buildURL(), exc);
+        }
+    }
+
+    /**
+     * Takes back the shell of a command that has completed.
+     */
+    void release(WinRMClient client) {
+        IdleShell evicted = null;
+        synchronized (this) {
+            if (!closed) {
+                idle.addLast(new IdleShell(client));
+                if (idle.size() > MAX_IDLE_SHELLS) {
+                    evicted = idle.removeFirst();
+                }
+                client = null;
+            }
+        }
+        if (client != null) {
+            discard(client);
+        }
+        if (evicted != null) {
+            discard(evicted.client);
+        }
+    }
+
+    /**
+     * Deletes the idle shells. Shells of commands still running are deleted when they complete.
+     */
+    public void close() {
+        LinkedList<IdleShell> shells;
+        synchronized (this) {
+            closed = true;
+            shells = new LinkedList<IdleShell>(idle);
+            idle.clear();
+        }
+        for (IdleShell s : shells) {
+            discard(s.client);
+        }
+    }
+
+    /**
+     * Most recently used idle shell that hasn't been idle for too long, if any.
+     */
+    private WinRMClient poll() {
+        LinkedList<IdleShell> expired = new LinkedList<IdleShell>();
+        WinRMClient client = null;
+        synchronized (this) {
+            while (!idle.isEmpty()) {
+                IdleShell s = idle.removeLast();
+                if (System.currentTimeMillis() - s.since < SHELL_IDLE_TIMEOUT) {
+                    client = s.client;
+                    break;
+                }
+                expired.add(s);
+            }
+        }
+        for (IdleShell s : expired) {
+            discard(s.client);
+        }
+        return client;
+    }
+
+    private WinRMClient open() {
+        WinRMClient client = winrm.newClient();
+        client.openShell();
+        return client;
+    }
+
+    private static void discard(WinRMClient client) {
+        try {
+            client.deleteShell();
+        } catch (Exception e) {
+            log.log(Level.FINE, "failed to delete winrm shell", e);
+        }
+    }
+
+    private static final class IdleShell {
+        final WinRMClient client;
+        final long since = System.currentTimeMillis();
+
+        IdleShell(WinRMClient client) {
+            this.client = client;
+        }
+    }
+}
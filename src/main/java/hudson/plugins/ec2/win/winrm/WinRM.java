@@ -22,9 +22,7 @@ public class WinRM {
     }
 
     public void ping() throws IOException {
-        final WinRMClient client = new WinRMClient(buildURL(), username, password);
-        client.setTimeout(secToDuration(timeout));
-        client.setUseHTTPS(isUseHTTPS());
+        final WinRMClient client = newClient();
         try {
             client.openShell();
         } finally {
@@ -36,9 +34,7 @@ public class WinRM {
     }
 
     public WindowsProcess execute(String commandLine) {
-        final WinRMClient client = new WinRMClient(buildURL(), username, password);
-        client.setTimeout(secToDuration(timeout));
-        client.setUseHTTPS(isUseHTTPS());
+        final WinRMClient client = newClient();
         try {
             client.openShell();
             client.executeCommand(commandLine);
@@ -49,6 +45,15 @@ public class WinRM {
         }
     }
 
+    /**
+     * Creates a client for this endpoint, with no shell open yet.
+     */
+    WinRMClient newClient() {
+        WinRMClient client = new WinRMClient(buildURL(), username, password);
+        client.setTimeout(secToDuration(timeout));
+        return client;
+    }
+
     public URL buildURL() {
         String scheme = useHTTPS ? "https" : "http";
         int port = useHTTPS ? 5986 : 5985;
@@ -98,7 +103,7 @@ public class WinRM {
      * @param timeout
      * @return
      */
-    private String secToDuration(int seconds) {
+    static String secToDuration(int seconds) {
         StringBuilder iso = new StringBuilder("P");
         if (seconds > 604800) {
             // more than a week
@@ -1,52 +1,72 @@
 package hudson.plugins.ec2.win.winrm;
 
+import hudson.plugins.ec2.win.winrm.RetryPolicy.Failure;
+import hudson.plugins.ec2.win.winrm.request.EnvelopeBuffer;
+import hudson.plugins.ec2.win.winrm.request.EnvelopeTemplate;
 import hudson.plugins.ec2.win.winrm.request.RequestFactory;
 import hudson.plugins.ec2.win.winrm.soap.Namespaces;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InterruptedIOException;
-import java.io.PipedOutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.ConnectException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.net.UnknownHostException;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLContext;
+import javax.xml.stream.XMLStreamException;
 
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Consts;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpRequest;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.ParseException;
+import org.apache.http.auth.AuthScheme;
+import org.apache.http.auth.AuthSchemeProvider;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.config.AuthSchemes;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.params.AuthPolicy;
 import org.apache.http.client.protocol.ClientContext;
-import org.apache.http.conn.HttpHostConnectException;
-import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
-import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.conn.ssl.SSLContexts;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.auth.BasicSchemeFactory;
+import org.apache.http.impl.auth.DigestSchemeFactory;
+import org.apache.http.impl.auth.KerberosSchemeFactory;
+import org.apache.http.impl.auth.NTLMSchemeFactory;
 import org.apache.http.impl.client.BasicAuthCache;
 import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
-import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 import org.dom4j.Document;
@@ -54,11 +74,21 @@ import org.dom4j.DocumentException;
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.dom4j.XPath;
-import org.jaxen.SimpleNamespaceContext;
 
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
-
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Client of one remote shell.
+ *
+ * <p>
+ * Requests go through an asynchronous HTTP client shared by all WinRM endpoints, which multiplexes
+ * their connections over a few I/O threads. The blocking methods wait for their response; the
+ * asynchronous ones ({@link #slurpOutput(OutputStream, OutputStream, FutureCallback)} and
+ * {@link #sendInput(byte[], int, int, FutureCallback)}) hold no thread while the request is in flight,
+ * so that a running command doesn't cost a thread blocked in a Receive long poll. Responses are read
+ * on a pool of handler threads that only live while there is work.
+ */
 public class WinRMClient {
     private static final Logger log = Logger.getLogger(WinRMClient.class.getName());
 
@@ -68,17 +98,88 @@ public class WinRMClient {
     private String shellId;
 
     private String commandId;
-    private int exitCode;
-
-    private SimpleNamespaceContext namespaceContext;
+    private volatile int exitCode;
 
     private final RequestFactory factory;
 
-    private ThreadLocal<BasicAuthCache> authCache = new ThreadLocal<BasicAuthCache>();
-    private boolean useHTTPS;
-    private Scheme httpsScheme;
+    private final ReceiveResponseParser receiveParser = new ReceiveResponseParser();
+
+    /* Envelope buffers of the blocking requests, one per thread as they may be sent concurrently */
+    private final ThreadLocal<EnvelopeBuffer> buffer = new ThreadLocal<EnvelopeBuffer>() {
+        @Override
+        protected EnvelopeBuffer initialValue() {
+            return new EnvelopeBuffer();
+        }
+    };
+
+    /* Envelope buffers of the asynchronous requests, of which at most one of each kind is in flight */
+    private final EnvelopeBuffer receiveBuffer = new EnvelopeBuffer();
+    private final EnvelopeBuffer sendBuffer = new EnvelopeBuffer();
+
+    private static final ContentType SOAP_CONTENT_TYPE = ContentType.create("application/soap+xml", Consts.UTF_8);
+
+    private final BasicAuthCache authCache = new SynchronizedAuthCache();
+
+    /*
+     * State the pooled connections of this client are leased with: the pool only hands out a connection
+     * released with the same state, so replacing it keeps the requests of this client off the connections
+     * it used so far, without touching those of the other endpoints.
+     */
+    private volatile Object connectionState = new Object();
     private BasicCredentialsProvider credsProvider;
 
+    /**
+     * Maximum number of pooled connections to a single winrm endpoint.
+     */
+    private static final int MAX_CONNECTIONS_PER_ROUTE = Integer.getInteger("jenkins.ec2.winrm.maxConnectionsPerRoute", 4);
+
+    /**
+     * Number of winrm endpoints, that is Windows slaves, the pool is sized for.
+     */
+    private static final int EXPECTED_HOSTS = Integer.getInteger("jenkins.ec2.winrm.expectedHosts", 250);
+
+    /**
+     * Maximum number of pooled connections over all winrm endpoints. Each endpoint with a running command
+     * holds one connection for the long-polling Receive and another for Send, so this defaults to room for
+     * {@link #MAX_CONNECTIONS_PER_ROUTE} connections to each of {@link #EXPECTED_HOSTS} endpoints: a smaller
+     * pool makes the Sends of some slaves queue behind the Receives of others.
+     */
+    private static final int MAX_CONNECTIONS = Integer.getInteger("jenkins.ec2.winrm.maxConnections",
+            MAX_CONNECTIONS_PER_ROUTE * EXPECTED_HOSTS);
+
+    /**
+     * Milliseconds after which an idle pooled connection is closed.
+     */
+    private static final long IDLE_CONNECTION_TIMEOUT = Long.getLong("jenkins.ec2.winrm.idleConnectionTimeout", TimeUnit.SECONDS.toMillis(30));
+
+    /**
+     * Number of threads doing the network I/O of all winrm endpoints.
+     */
+    private static final int IO_THREADS = Integer.getInteger("jenkins.ec2.winrm.ioThreads", 2);
+
+    /**
+     * Whether HTTPS winrm endpoints may present self-signed certificates, for whichever host. This turns off
+     * the checks that the endpoint is the host it claims to be, so it is off unless set, and then only meant
+     * for endpoints reached over networks that are trusted anyway.
+     */
+    private static final boolean ALLOW_SELF_SIGNED_CERTIFICATES = Boolean.getBoolean("jenkins.ec2.winrm.allowSelfSignedCertificates");
+
+    private static final RequestConfig REQUEST_CONFIG = RequestConfig.custom().setConnectTimeout(5000).build();
+
+    private static final PoolingNHttpClientConnectionManager connectionManager = createConnectionManager();
+
+    private static final CloseableHttpAsyncClient httpclient = createHttpClient();
+
+    /* Sends the requests that are retried after a backoff */
+    private static final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(new WinRMThreadFactory("WinRM retry"));
+
+    /* Reads the responses, which may block on the pipes of the process */
+    private static final ExecutorService responseHandlers = Executors.newCachedThreadPool(new WinRMThreadFactory("WinRM response handler"));
+
+    static {
+        httpclient.start();
+        new IdleConnectionEvictor().start();
+    }
 
     public WinRMClient(URL url, String username, String password) {
         this.url = url;
@@ -109,8 +210,9 @@ public class WinRMClient {
 
         log.log(Level.FINE, "closing winrm shell " + shellId);
 
-        Document request = factory.newDeleteShellRequest(shellId).build();
-        sendRequest(request);
+        EnvelopeBuffer request = buffer.get();
+        factory.deleteShellTemplate().write(request, shellId, null);
+        sendRequest(request, DOCUMENT_READER);
 
     }
 
@@ -121,49 +223,82 @@ public class WinRMClient {
 
         log.log(Level.FINE, "signalling winrm shell " + shellId + " command: " + commandId);
 
-        Document request = factory.newSignalRequest(shellId, commandId).build();
-        sendRequest(request);
+        EnvelopeBuffer request = buffer.get();
+        factory.signalTemplate().write(request, shellId, commandId);
+        sendRequest(request, DOCUMENT_READER);
     }
 
     public void sendInput(byte[] input) {
-        log.log(Level.FINE, "--> sending " + input.length);
+        sendInput(input, 0, input.length);
+    }
 
-        Document request = factory.newSendInputRequest(input, shellId, commandId).build();
-        sendRequest(request);
+    public void sendInput(byte[] input, int off, int len) {
+        log.log(Level.FINE, "--> sending " + len);
+
+        EnvelopeBuffer request = buffer.get();
+        factory.sendInputTemplate().write(request, shellId, commandId, input, off, len);
+        sendRequest(request, DOCUMENT_READER);
     }
 
-    public boolean slurpOutput(PipedOutputStream stdout, PipedOutputStream stderr) throws IOException {
-        log.log(Level.FINE, "--> SlurpOutput");
-        ImmutableMap<String, PipedOutputStream> streams = ImmutableMap.of("stdout", stdout, "stderr", stderr);
+    /**
+     * Sends input without waiting for the response. Only one such request may be in flight at a time;
+     * the input array may be reused as soon as this method returns.
+     */
+    public void sendInput(byte[] input, int off, int len, final FutureCallback<Void> callback) {
+        log.log(Level.FINE, "--> sending " + len);
+
+        factory.sendInputTemplate().write(sendBuffer, shellId, commandId, input, off, len);
+        sendRequest(sendBuffer, DOCUMENT_READER, new FutureCallback<Document>() {
+            public void completed(Document result) {
+                callback.completed(null);
+            }
 
-        Document request = factory.newGetOutputRequest(shellId, commandId).build();
-        Document response = sendRequest(request);
+            public void failed(Exception ex) {
+                callback.failed(ex);
+            }
 
-        XPath xpath = DocumentHelper.createXPath("//" + Namespaces.NS_WIN_SHELL.getPrefix() + ":Stream");
-        namespaceContext = new SimpleNamespaceContext();
-        namespaceContext.addNamespace(Namespaces.NS_WIN_SHELL.getPrefix(), Namespaces.NS_WIN_SHELL.getURI());
-        xpath.setNamespaceContext(namespaceContext);
+            public void cancelled() {
+                callback.cancelled();
+            }
+        });
+    }
 
-        Base64 base64 = new Base64();
-        for (Element e : (List<Element>) xpath.selectNodes(response)) {
-            PipedOutputStream stream = streams.get(e.attribute("Name").getText().toLowerCase());
-            final byte[] decode = base64.decode(e.getText());
-            log.log(Level.FINE, "piping " + decode.length + " bytes from " + e.attribute("Name").getText().toLowerCase());
+    /**
+     * Largest input that fits in one Send request within the envelope size.
+     */
+    public int getMaxInputSize() {
+        EnvelopeBuffer request = buffer.get();
+        factory.sendInputTemplate().write(request, shellId, commandId, null, 0, 0);
+        // base64 turns every 3 bytes into 4
+        return Math.max(1, (factory.getEnvelopSize() - request.size()) / 4 * 3);
+    }
 
-            stream.write(decode);
-        }
+    public boolean slurpOutput(OutputStream stdout, OutputStream stderr) throws IOException {
+        SettableFuture<Boolean> running = SettableFuture.create();
+        slurpOutput(stdout, stderr, callback(running));
+        return await(running);
+    }
 
-        XPath done = DocumentHelper
-                .createXPath("//*[@State='http://schemas.microsoft.com/wbem/wsman/1/windows/shell/CommandState/Done']");
-        done.setNamespaceContext(namespaceContext);
-        if (Iterables.isEmpty(done.selectNodes(response))) {
-            log.log(Level.FINE, "keep going baby!");
-            return true;
-        } else {
-            exitCode = Integer.parseInt(first(response, "//" + Namespaces.NS_WIN_SHELL.getPrefix() + ":ExitCode"));
-            log.log(Level.FINE, "no more output - command is now done - exit code: " + exitCode);
-        }
-        return false;
+    /**
+     * Polls for output without holding a thread while the server waits for some, and tells the
+     * callback whether the command is still running. Only one such request may be in flight at a time.
+     */
+    public void slurpOutput(final OutputStream stdout, final OutputStream stderr, FutureCallback<Boolean> callback) {
+        log.log(Level.FINE, "--> SlurpOutput");
+
+        factory.getOutputTemplate().write(receiveBuffer, shellId, commandId);
+        sendRequest(receiveBuffer, new ResponseReader<Boolean>() {
+            public Boolean read(InputStream in, String encoding) throws IOException, XMLStreamException {
+                boolean running = receiveParser.parse(in, encoding, stdout, stderr);
+                if (running) {
+                    log.log(Level.FINE, "keep going baby!");
+                } else {
+                    exitCode = receiveParser.getExitCode();
+                    log.log(Level.FINE, "no more output - command is now done - exit code: " + exitCode);
+                }
+                return running;
+            }
+        }, callback);
     }
 
     public int exitCode() {
@@ -183,63 +318,269 @@ public class WinRMClient {
         credsProvider = new BasicCredentialsProvider();
         credsProvider.setCredentials(new AuthScope(AuthScope.ANY_HOST, AuthScope.ANY_PORT), new UsernamePasswordCredentials(
                 username, password));
+    }
 
-        if (useHTTPS) {
-            SSLSocketFactory socketFactory;
+    /**
+     * Connections shared by all WinRM clients, so that the polling of a command's output and input
+     * reuses kept-alive (and already authenticated) connections instead of opening one per request.
+     */
+    private static PoolingNHttpClientConnectionManager createConnectionManager() {
+        RegistryBuilder<SchemeIOSessionStrategy> schemes = RegistryBuilder.<SchemeIOSessionStrategy> create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", SSLIOSessionStrategy.getDefaultStrategy());
+        if (ALLOW_SELF_SIGNED_CERTIFICATES) {
             try {
-                socketFactory = new SSLSocketFactory(new TrustSelfSignedStrategy(), new AllowAllHostnameVerifier());
-                httpsScheme = new Scheme("https", 443, socketFactory);
-            } catch (KeyManagementException e) {
-            } catch (UnrecoverableKeyException e) {
-            } catch (NoSuchAlgorithmException e) {
-            } catch (KeyStoreException e) {
+                SSLContext sslContext = SSLContexts.custom().loadTrustMaterial(null, new TrustSelfSignedStrategy()).build();
+                schemes.register("https", new SSLIOSessionStrategy(sslContext, new AllowAllHostnameVerifier()));
+                log.warning("winrm accepts self-signed certificates, for any host, over HTTPS");
+            } catch (GeneralSecurityException e) {
+                log.log(Level.WARNING, "Failed to allow self-signed certificates for winrm, the default certificate checks apply", e);
             }
         }
+
+        try {
+            DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                    .setIoThreadCount(IO_THREADS).setConnectTimeout(5000).build(), new WinRMThreadFactory("WinRM I/O dispatcher"));
+            PoolingNHttpClientConnectionManager manager = new PoolingNHttpClientConnectionManager(ioReactor, schemes.build());
+            manager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+            manager.setMaxTotal(MAX_CONNECTIONS);
+            return manager;
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("Failed to start the winrm I/O reactor", e);
+        }
+    }
+
+    private static CloseableHttpAsyncClient createHttpClient() {
+        // the schemes of the default client, but SPNEGO
+        Registry<AuthSchemeProvider> authSchemes = RegistryBuilder.<AuthSchemeProvider> create()
+                .register(AuthSchemes.BASIC, new BasicSchemeFactory())
+                .register(AuthSchemes.DIGEST, new DigestSchemeFactory())
+                .register(AuthSchemes.NTLM, new NTLMSchemeFactory())
+                .register(AuthSchemes.KERBEROS, new KerberosSchemeFactory())
+                .build();
+        return HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultAuthSchemeRegistry(authSchemes)
+                .setThreadFactory(new WinRMThreadFactory("WinRM I/O reactor"))
+                .build();
+    }
+
+    /**
+     * Closes the pooled connections that have been idle for too long, or that the server has closed.
+     */
+    private static final class IdleConnectionEvictor extends Thread {
+        IdleConnectionEvictor() {
+            super("WinRM idle connection evictor");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(IDLE_CONNECTION_TIMEOUT / 2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static final class WinRMThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WinRMThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + " #" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
     }
 
-    private DefaultHttpClient buildHTTPClient()
-    {
-        DefaultHttpClient httpclient = new DefaultHttpClient();
-        httpclient.getAuthSchemes().unregister(AuthPolicy.SPNEGO);
-        httpclient.setCredentialsProvider(credsProvider);
-        httpclient.getParams().setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, 5000);
-        //httpclient.setHttpRequestRetryHandler(new WinRMRetryHandler());
-        return httpclient;
+    /**
+     * The auth cache of a client is shared by its blocking and asynchronous requests, which complete
+     * on different threads.
+     */
+    private static final class SynchronizedAuthCache extends BasicAuthCache {
+        @Override
+        public synchronized void put(HttpHost host, AuthScheme authScheme) {
+            super.put(host, authScheme);
+        }
+
+        @Override
+        public synchronized AuthScheme get(HttpHost host) {
+            return super.get(host);
+        }
+
+        @Override
+        public synchronized void remove(HttpHost host) {
+            super.remove(host);
+        }
+
+        @Override
+        public synchronized void clear() {
+            super.clear();
+        }
     }
 
     private Document sendRequest(Document request) {
-        return sendRequest(request, 0);
+        return sendRequest(request, DOCUMENT_READER);
     }
 
-    private Document sendRequest(Document request, int retry) {
-        if (retry > 3) {
-            throw new RuntimeException("Too many retry for request");
+    private <T> T sendRequest(Document request, ResponseReader<T> reader) {
+        String xml = request.asXML();
+        log.log(Level.FINEST, "Request:\nPOST " + url + "\n" + xml);
+        SettableFuture<T> result = SettableFuture.create();
+        sendRequest(new StringEntity(xml, SOAP_CONTENT_TYPE), 0, reader, callback(result));
+        return await(result);
+    }
+
+    /**
+     * Sends the envelope in the buffer, as written by an {@link EnvelopeTemplate}.
+     */
+    private <T> T sendRequest(EnvelopeBuffer request, ResponseReader<T> reader) {
+        SettableFuture<T> result = SettableFuture.create();
+        sendRequest(request, reader, callback(result));
+        return await(result);
+    }
+
+    private <T> void sendRequest(EnvelopeBuffer request, ResponseReader<T> reader, FutureCallback<T> callback) {
+        if (log.isLoggable(Level.FINEST)) {
+            log.log(Level.FINEST, "Request:\nPOST " + url + "\n" + new String(request.getBuffer(), 0, request.size(), SOAP_CONTENT_TYPE.getCharset()));
         }
-        
-        DefaultHttpClient httpclient = buildHTTPClient();
-        HttpContext context = new BasicHttpContext();
-        
-        if (authCache.get() == null) {
-            authCache.set(new BasicAuthCache());
+        // not copied: the buffer isn't rewritten before the callback is notified
+        sendRequest(new ByteArrayEntity(request.getBuffer(), 0, request.size(), SOAP_CONTENT_TYPE), 0, reader, callback);
+    }
+
+    private static <T> FutureCallback<T> callback(final SettableFuture<T> future) {
+        return new FutureCallback<T>() {
+            public void completed(T result) {
+                future.set(result);
+            }
+
+            public void failed(Exception ex) {
+                future.setException(ex);
+            }
+
+            public void cancelled() {
+                future.cancel(false);
+            }
+        };
+    }
+
+    private static <T> T await(SettableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while waiting for winrm", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
         }
-        
-        context.setAttribute(ClientContext.AUTH_CACHE, authCache.get());
+    }
 
-        if (useHTTPS) {
-            httpclient.getConnectionManager().getSchemeRegistry().register(httpsScheme);
+    /**
+     * Reads the body of a successful (or timed out) response.
+     */
+    private interface ResponseReader<T> {
+        /**
+         * @param encoding the charset given by the response, or null.
+         */
+        T read(InputStream in, String encoding) throws IOException, DocumentException, XMLStreamException;
+    }
+
+    private static final ResponseReader<Document> DOCUMENT_READER = new ResponseReader<Document>() {
+        public Document read(InputStream in, String encoding) throws IOException, DocumentException {
+            Document responseDocument = DocumentHelper.parseText(IOUtils.toString(in, encoding == null ? "ISO-8859-1" : encoding));
+            log.log(Level.FINEST, "Response:\n" + responseDocument.asXML());
+            return responseDocument;
         }
+    };
 
+    private <T> void sendRequest(final HttpEntity entity, final int retry, final ResponseReader<T> reader, final FutureCallback<T> callback) {
+        final long start = System.currentTimeMillis();
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(ClientContext.AUTH_CACHE, authCache);
+        context.setAttribute(ClientContext.CREDS_PROVIDER, credsProvider);
+        context.setAttribute(ClientContext.USER_TOKEN, connectionState);
+
+        HttpPost post;
         try {
-            HttpPost post = new HttpPost(url.toURI());
+            post = new HttpPost(url.toURI());
+        } catch (URISyntaxException e) {
+            callback.failed(new RuntimeException("Invalid WinRM URI " + url));
+            return;
+        }
+        post.setConfig(REQUEST_CONFIG);
+        post.setEntity(entity);
+
+        httpclient.execute(post, context, new FutureCallback<HttpResponse>() {
+            public void completed(final HttpResponse response) {
+                // off the I/O threads, as reading the response may block on the pipes of the process
+                responseHandlers.execute(new Runnable() {
+                    public void run() {
+                        handleResponse(response, entity, retry, start, reader, callback);
+                    }
+                });
+            }
 
-            HttpEntity entity = new StringEntity(request.asXML(), "application/soap+xml", "UTF-8");
-            post.setEntity(entity);
+            public void failed(Exception e) {
+                if (!(e instanceof IOException)) {
+                    callback.failed(new RuntimeException("HTTP Error " + e.getMessage(), e));
+                    return;
+                }
+                Failure failure = RetryPolicy.classify(e);
+                if (retryLater(failure, start, entity, retry, reader, callback)) {
+                    log.log(Level.FINE, "winrm request to " + url + " failed, retrying", e);
+                } else if (failure == Failure.CONNECT) {
+                    log.log(Level.FINE, "Can't connect to host", e);
+                    callback.failed(new WinRMConnectException("Can't connect to host: " + e.getMessage(), e));
+                } else {
+                    log.log(Level.WARNING, "I/O Exception in HTTP POST", e);
+                    callback.failed(new RuntimeIOException("Giving up on winrm request to " + url + " after " + (retry + 1)
+                            + " attempts (" + failure + "): " + e.getMessage(), e));
+                }
+            }
 
-            log.log(Level.FINEST, "Request:\nPOST " + url + "\n" + request.asXML());
+            public void cancelled() {
+                callback.cancelled();
+            }
+        });
+    }
 
-            HttpResponse response = httpclient.execute(post, context);
-            HttpEntity responseEntity = response.getEntity();
+    /**
+     * Schedules the request to be sent again after a backoff, if the policy says so.
+     *
+     * @return false if the request is given up on.
+     */
+    private <T> boolean retryLater(Failure failure, long start, final HttpEntity entity, final int retry, final ResponseReader<T> reader,
+            final FutureCallback<T> callback) {
+        if (!RetryPolicy.shouldRetry(failure, retry)) {
+            return false;
+        }
+        long delay = RetryPolicy.delay(retry);
+        log.log(Level.FINE, "retrying winrm request to " + url + " after " + failure + " (attempt took "
+                + (System.currentTimeMillis() - start) + "ms) in " + delay + "ms");
+        retryScheduler.schedule(new Runnable() {
+            public void run() {
+                sendRequest(entity, retry + 1, reader, callback);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
 
+    private <T> void handleResponse(HttpResponse response, HttpEntity entity, int retry, long start, ResponseReader<T> reader, FutureCallback<T> callback) {
+        HttpEntity responseEntity = response.getEntity();
+        T result;
+        try {
             if (response.getStatusLine().getStatusCode() != 200) {
                 // check for possible timeout
 
@@ -247,24 +588,29 @@ public class WinRMClient {
                         && (responseEntity.getContentType() != null && entity.getContentType().getValue()
                         .startsWith("application/soap+xml"))) {
                     String respStr = EntityUtils.toString(responseEntity);
-                    if (respStr.contains("TimedOut")) {
-                        return DocumentHelper.parseText(respStr);
+                    if (!respStr.contains("TimedOut")) {
+                        // such as a shell that expired or is unknown: no reply will ever say the command is done
+                        log.log(Level.WARNING, "winrm service " + shellId + " returned a fault: " + respStr);
+                        throw new RuntimeException("WinRM fault on " + url + " for shell " + shellId);
                     }
+                    // a Receive that timed out waiting for output is read like any other response
+                    responseEntity = new StringEntity(respStr, ContentType.getOrDefault(responseEntity));
                 } else {
                     // this shouldn't happen, as httpclient knows how to auth the request
                     // but I've seen it. I blame keep-alive, so we're just going
                     // to scrap the connections, and try again
                     if (response.getStatusLine().getStatusCode() == 401) {
-                        // we need to force using new connections here
-                        // throw away our auth cache
-                        log.log(Level.WARNING, "winrm returned 401 - shouldn't happen though - retrying in 2 minutes");
-                        try {
-                            Thread.sleep(TimeUnit.MINUTES.toMillis(3));
-                        } catch (InterruptedException e) {
+                        // we need to force using new connections to this endpoint here,
+                        // and throw away what we cached of its auth; the idle ones left behind
+                        // are closed by the evictor
+                        authCache.remove(new HttpHost(url.getHost(), url.getPort(), url.getProtocol()));
+                        connectionState = new Object();
+                        if (retryLater(Failure.AUTH, start, entity, retry, reader, callback)) {
+                            log.log(Level.WARNING, "winrm returned 401 - shouldn't happen though - retrying");
+                            return;
                         }
-                        authCache.set(new BasicAuthCache());
-                        log.log(Level.WARNING, "winrm returned 401 - retrying now");
-                        return sendRequest(request, ++retry);
+                        throw new RuntimeIOException("winrm on " + url + " still returned 401 after " + (retry + 1)
+                                + " attempts, check the credentials of " + username);
                     }
                     log.log(Level.WARNING, "winrm service " + shellId + " unexpected HTTP Response ("
                             + response.getStatusLine().getReasonPhrase() + "): " + EntityUtils.toString(response.getEntity()));
@@ -278,28 +624,45 @@ public class WinRMClient {
                 throw new RuntimeException("Unexepected WinRM content type: " + entity.getContentType());
             }
 
-            Document responseDocument = DocumentHelper.parseText(EntityUtils.toString(responseEntity));
-
-            log.log(Level.FINEST, "Response:\n" + responseDocument.asXML());
-            return responseDocument;
-        } catch (URISyntaxException e) {
-            throw new RuntimeException("Invalid WinRM URI " + url);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException("Invalid WinRM body " + request.asXML());
-        } catch (ClientProtocolException e) {
-            throw new RuntimeException("HTTP Error " + e.getMessage(), e);
-        } catch (HttpHostConnectException e) {
-            log.log(Level.SEVERE, "Can't connect to host", e);
-            throw new WinRMConnectException("Can't connect to host: " + e.getMessage(), e);
-        } catch (IOException e) {
-            log.log(Level.SEVERE, "I/O Exception in HTTP POST", e);
-            throw new RuntimeIOException("I/O Exception " + e.getMessage(), e);
+            result = readResponse(responseEntity, reader);
         } catch (ParseException e) {
             log.log(Level.SEVERE, "XML Parse exception in HTTP POST", e);
-            throw new RuntimeException("Unparseable XML in winRM response " + e.getMessage(), e);
+            callback.failed(new RuntimeException("Unparseable XML in winRM response " + e.getMessage(), e));
+            return;
+        } catch (RuntimeException e) {
+            callback.failed(e);
+            return;
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "I/O Exception in HTTP POST", e);
+            callback.failed(new RuntimeIOException("I/O Exception " + e.getMessage(), e));
+            return;
         } catch (DocumentException e) {
             log.log(Level.SEVERE, "XML Document exception in HTTP POST", e);
-            throw new RuntimeException("Invalid XML document in winRM response " + e.getMessage(), e);
+            callback.failed(new RuntimeException("Invalid XML document in winRM response " + e.getMessage(), e));
+            return;
+        } catch (XMLStreamException e) {
+            log.log(Level.SEVERE, "XML Stream exception in HTTP POST", e);
+            callback.failed(new RuntimeException("Invalid XML document in winRM response " + e.getMessage(), e));
+            return;
+        } finally {
+            EntityUtils.consumeQuietly(responseEntity);
+        }
+        callback.completed(result);
+    }
+
+    private <T> T readResponse(HttpEntity responseEntity, ResponseReader<T> reader) throws IOException, DocumentException, XMLStreamException {
+        Charset charset = ContentType.getOrDefault(responseEntity).getCharset();
+        String encoding = charset == null ? null : charset.name();
+        if (reader != DOCUMENT_READER && log.isLoggable(Level.FINEST)) {
+            String respStr = EntityUtils.toString(responseEntity);
+            log.log(Level.FINEST, "Response:\n" + respStr);
+            return reader.read(new ByteArrayInputStream(respStr.getBytes(encoding == null ? "ISO-8859-1" : encoding)), encoding);
+        }
+        InputStream in = responseEntity.getContent();
+        try {
+            return reader.read(in, encoding);
+        } finally {
+            in.close();
         }
     }
 
@@ -310,8 +673,4 @@ public class WinRMClient {
     public void setTimeout(String timeout) {
         factory.setTimeout(timeout);
     }
-
-    public void setUseHTTPS(boolean useHTTPS) {
-        this.useHTTPS = useHTTPS;
-    }
 }
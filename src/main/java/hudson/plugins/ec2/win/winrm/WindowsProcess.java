@@ -3,76 +3,104 @@ package hudson.plugins.ec2.win.winrm;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.apache.http.concurrent.FutureCallback;
+
 import com.google.common.io.Closeables;
 
+/**
+ * A command running in a remote shell.
+ *
+ * <p>
+ * Output is polled for and input is sent with asynchronous requests, each one issued from the
+ * completion of the previous one, so no thread is dedicated to a running command.
+ */
 public class WindowsProcess {
     private static final Logger log = Logger.getLogger(WindowsProcess.class.getName());
 
-    private final static int INPUT_BUFFER = 16 * 1024;
+    private final static int OUTPUT_BUFFER = 16 * 1024;
     private final WinRMClient client;
 
-    private final PipedInputStream toCallersStdin;
-    private final PipedOutputStream callersStdin;
-    private final PipedInputStream callersStdout;
-    private final PipedOutputStream toCallersStdout;
-    private final PipedInputStream callersStderr;
-    private final PipedOutputStream toCallersStderr;
+    private final BoundedPipe stdin;
+    private final BoundedPipe stdout;
+    private final BoundedPipe stderr;
+
+    /* takes the shell back once the command completes, or null to delete it */
+    private final ShellPool pool;
 
     private boolean terminated;
+    private volatile boolean failed;
+    private int exitCode;
     private String command;
 
-    private Thread outputThread;
+    private final CountDownLatch outputDone = new CountDownLatch(1);
+    private final CountDownLatch inputDone = new CountDownLatch(1);
 
-    private Thread inputThread;
+    /* input is sent from this buffer, by one request at a time */
+    private final byte[] inputBuffer;
+    private final AtomicBoolean sending = new AtomicBoolean();
 
     WindowsProcess(WinRMClient client, String command) throws IOException {
+        this(client, command, null);
+    }
+
+    WindowsProcess(WinRMClient client, String command, ShellPool pool) throws IOException {
         this.client = client;
         this.command = command;
+        this.pool = pool;
 
-        toCallersStdin = new PipedInputStream(INPUT_BUFFER);
-        callersStdin = new PipedOutputStream(toCallersStdin);
-        callersStdout = new PipedInputStream(INPUT_BUFFER);
-        toCallersStdout = new PipedOutputStream(callersStdout);
-        callersStderr = new PipedInputStream(INPUT_BUFFER);
-        toCallersStderr = new PipedOutputStream(callersStderr);
-        startStdoutCopyThread();
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-        }
-        startStdinCopyThread();
+        // as much input as fits in one Send request is buffered, so that it goes out in one round trip
+        inputBuffer = new byte[client.getMaxInputSize()];
+        stdin = new BoundedPipe(inputBuffer.length, new Runnable() {
+            public void run() {
+                sendInput();
+            }
+        });
+        stdout = new BoundedPipe(OUTPUT_BUFFER);
+        stderr = new BoundedPipe(OUTPUT_BUFFER);
+        pollOutput();
     }
 
     public InputStream getStdout() {
-        return callersStdout;
+        return stdout.getSource();
     }
 
     public OutputStream getStdin() {
-        return callersStdin;
+        return stdin.getSink();
     }
 
     public InputStream getStderr() {
-        return callersStderr;
+        return stderr.getSource();
     }
 
     public synchronized int waitFor() {
         if (terminated) {
-            return client.exitCode();
+            return exitCode;
         }
 
         try {
+            boolean done = false;
             try {
-                outputThread.join();
+                outputDone.await();
+                exitCode = client.exitCode();
+                if (pool != null && !failed) {
+                    // the shell runs the next command, so make sure none of our input ends up there
+                    Closeables.closeQuietly(stdin.getSink());
+                    inputDone.await();
+                    pool.release(client);
+                    done = true;
+                }
             } finally {
-                client.deleteShell();
+                if (!done) {
+                    client.deleteShell();
+                }
                 terminated = true;
             }
-            return client.exitCode();
+            return exitCode;
         } catch (InterruptedException exc) {
             throw new RuntimeException("Exception while executing command", exc);
         }
@@ -88,65 +116,87 @@ public class WindowsProcess {
         terminated = true;
     }
 
-    private void startStdoutCopyThread() {
-        outputThread = new Thread("output copy: " + command) {
-            @Override
-            public void run() {
-                try {
-                    for (;;) {
-                        if (!client.slurpOutput(toCallersStdout, toCallersStderr)) {
-                            log.log(Level.FINE, "no more output for " + command);
-                            break;
-                        }
-                    }
-                } catch (Exception exc) {
-                    log.log(Level.WARNING, "ouch, stdout exception for " + command, exc);
-                    exc.printStackTrace();
-                } finally {
-                    Closeables.closeQuietly(toCallersStdout);
-                    Closeables.closeQuietly(toCallersStderr);
+    /**
+     * Asks for more output, and again once it has been written to the pipes, until the command is done.
+     */
+    private void pollOutput() {
+        client.slurpOutput(stdout.getSink(), stderr.getSink(), new FutureCallback<Boolean>() {
+            public void completed(Boolean running) {
+                if (running) {
+                    pollOutput();
+                } else {
+                    log.log(Level.FINE, "no more output for " + command);
+                    outputDone();
                 }
             }
-        };
-        outputThread.setDaemon(true);
-        outputThread.start();
+
+            public void failed(Exception exc) {
+                failed = true;
+                log.log(Level.WARNING, "ouch, stdout exception for " + command, exc);
+                outputDone();
+            }
+
+            public void cancelled() {
+                failed = true;
+                outputDone();
+            }
+        });
     }
 
-    private void startStdinCopyThread() {
-        inputThread = new Thread("input copy: " + command) {
-            @Override
-            public void run() {
-                try {
-                    byte[] buf = new byte[INPUT_BUFFER];
-                    for (;;) {
-                        int n = 0;
-                        try {
-                            n = toCallersStdin.read(buf);
-                        } catch(IOException ioe) {
-                            // it's safe to ignore IO Exception coming from Jenkins
-                            // This can happen with PipedInputStream if the writing Thread
-                            // is killed but the input stream is handed to another thread
-                            // in this case, we can still read from the pipe.
-                            continue;
-                        }
-                        if (n == -1)
-                            break;
-                        if (n == 0)
-                            continue;
-
-                        byte[] bufToSend = new byte[n];
-                        System.arraycopy(buf, 0, bufToSend, 0, n);
-                        log.log(Level.FINE, "piping " + bufToSend.length + " to input of " + command);
-                        client.sendInput(bufToSend);
-                    }
-                } catch (Exception exc) {
-                    log.log(Level.WARNING, "ouch, STDIN exception for " + command, exc);
-                } finally {
-                    Closeables.closeQuietly(callersStdin);
-                }
+    private void outputDone() {
+        Closeables.closeQuietly(stdout.getSink());
+        Closeables.closeQuietly(stderr.getSink());
+        outputDone.countDown();
+    }
+
+    /**
+     * Sends what has been written to stdin, unless a Send is already in flight. Runs after each write
+     * and after each Send completes, so that the writes made in the meantime go out together.
+     */
+    private void sendInput() {
+        if (!sending.compareAndSet(false, true)) {
+            return;
+        }
+        int n;
+        try {
+            n = stdin.readAvailable(inputBuffer, 0, inputBuffer.length);
+        } catch (IOException exc) {
+            n = -1;
+        }
+        if (n == -1) {
+            // stays marked as sending, so that nothing is sent anymore
+            inputDone.countDown();
+            return;
+        }
+        if (n == 0) {
+            sending.set(false);
+            // a write may have come in after the read, and found us still sending
+            if (stdin.isReadable()) {
+                sendInput();
             }
-        };
-        inputThread.setDaemon(true);
-        inputThread.start();
+            return;
+        }
+
+        log.log(Level.FINE, "piping " + n + " to input of " + command);
+        client.sendInput(inputBuffer, 0, n, new FutureCallback<Void>() {
+            public void completed(Void result) {
+                sending.set(false);
+                sendInput();
+            }
+
+            public void failed(Exception exc) {
+                log.log(Level.WARNING, "ouch, STDIN exception for " + command, exc);
+                inputFailed();
+            }
+
+            public void cancelled() {
+                inputFailed();
+            }
+        });
+    }
+
+    private void inputFailed() {
+        Closeables.closeQuietly(stdin.getSource());
+        inputDone.countDown();
     }
 }
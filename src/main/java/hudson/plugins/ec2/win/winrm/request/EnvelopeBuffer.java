@@ -0,0 +1,96 @@
+package hudson.plugins.ec2.win.winrm.request;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Reusable buffer that SOAP envelopes are written into by {@link EnvelopeTemplate}.
+ * Call {@link #reset()} before writing the next envelope.
+ */
+public class EnvelopeBuffer extends ByteArrayOutputStream {
+    private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    public EnvelopeBuffer() {
+        super(4096);
+    }
+
+    /**
+     * The internal array; only the first {@link #size()} bytes are valid.
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * Writes the text as UTF-8, escaped for use in XML text and attribute values.
+     */
+    public void writeEscaped(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+            case '&':
+                writeAscii("&amp;");
+                break;
+            case '<':
+                writeAscii("&lt;");
+                break;
+            case '>':
+                writeAscii("&gt;");
+                break;
+            case '"':
+                writeAscii("&quot;");
+                break;
+            default:
+                if (c < 0x80) {
+                    write(c);
+                } else if (c < 0x800) {
+                    write(0xc0 | (c >> 6));
+                    write(0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < text.length()) {
+                    int cp = Character.toCodePoint(c, text.charAt(++i));
+                    write(0xf0 | (cp >> 18));
+                    write(0x80 | ((cp >> 12) & 0x3f));
+                    write(0x80 | ((cp >> 6) & 0x3f));
+                    write(0x80 | (cp & 0x3f));
+                } else {
+                    write(0xe0 | (c >> 12));
+                    write(0x80 | ((c >> 6) & 0x3f));
+                    write(0x80 | (c & 0x3f));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the given bytes in base64, without line breaks.
+     */
+    public void writeBase64(byte[] data, int off, int len) {
+        int end = off + len;
+        int i = off;
+        for (; i + 2 < end; i += 3) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+            write(BASE64[bits >> 18]);
+            write(BASE64[(bits >> 12) & 0x3f]);
+            write(BASE64[(bits >> 6) & 0x3f]);
+            write(BASE64[bits & 0x3f]);
+        }
+        if (end - i == 1) {
+            int bits = (data[i] & 0xff) << 16;
+            write(BASE64[bits >> 18]);
+            write(BASE64[(bits >> 12) & 0x3f]);
+            write('=');
+            write('=');
+        } else if (end - i == 2) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8;
+            write(BASE64[bits >> 18]);
+            write(BASE64[(bits >> 12) & 0x3f]);
+            write(BASE64[(bits >> 6) & 0x3f]);
+            write('=');
+        }
+    }
+
+    private void writeAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            write(s.charAt(i));
+        }
+    }
+}
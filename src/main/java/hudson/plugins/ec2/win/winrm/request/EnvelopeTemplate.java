@@ -0,0 +1,103 @@
+package hudson.plugins.ec2.win.winrm.request;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * SOAP envelope of one request type, precompiled from the XML its {@link AbstractWinRMRequest} builds,
+ * so that requests sent in tight loops are written straight into an {@link EnvelopeBuffer} with only
+ * the message ID, shell ID, command ID and payload filled in.
+ *
+ * <p>
+ * The template is the builder's own output with markers in place of the variable fields,
+ * so the builders remain the reference for what is sent.
+ */
+public class EnvelopeTemplate {
+    private enum Field { MESSAGE_ID, SHELL_ID, COMMAND_ID, PAYLOAD }
+
+    static final String SHELL_ID_MARKER = "@SHELL_ID@";
+    static final String COMMAND_ID_MARKER = "@COMMAND_ID@";
+    /* a base64 string that decodes and re-encodes to itself, so that it survives the builder */
+    static final String PAYLOAD_MARKER = "PAYLOADMARKER000";
+    static final byte[] PAYLOAD_MARKER_BYTES = Base64.decodeBase64(PAYLOAD_MARKER);
+
+    private static final String MESSAGE_ID_MARKER = "@MESSAGE_ID@";
+    private static final Pattern MESSAGE_ID = Pattern.compile("(<a:MessageID>)[^<]*(</a:MessageID>)");
+    private static final Pattern MARKERS = Pattern.compile(Pattern.quote(MESSAGE_ID_MARKER) + "|" + Pattern.quote(SHELL_ID_MARKER)
+            + "|" + Pattern.quote(COMMAND_ID_MARKER) + "|" + Pattern.quote(PAYLOAD_MARKER));
+
+    /* literals[i] is written before fields[i]; the last literal closes the envelope */
+    private final byte[][] literals;
+    private final Field[] fields;
+
+    EnvelopeTemplate(AbstractWinRMRequest reference) {
+        String xml = reference.build().asXML();
+        Matcher m = MESSAGE_ID.matcher(xml);
+        if (!m.find())
+            throw new IllegalArgumentException("No message ID in " + xml);
+        xml = m.replaceFirst("$1" + MESSAGE_ID_MARKER + "$2");
+
+        List<byte[]> literals = new ArrayList<byte[]>();
+        List<Field> fields = new ArrayList<Field>();
+        m = MARKERS.matcher(xml);
+        int start = 0;
+        while (m.find()) {
+            literals.add(utf8(xml.substring(start, m.start())));
+            String marker = m.group();
+            fields.add(marker.equals(MESSAGE_ID_MARKER) ? Field.MESSAGE_ID : marker.equals(SHELL_ID_MARKER) ? Field.SHELL_ID
+                    : marker.equals(COMMAND_ID_MARKER) ? Field.COMMAND_ID : Field.PAYLOAD);
+            start = m.end();
+        }
+        literals.add(utf8(xml.substring(start)));
+
+        this.literals = literals.toArray(new byte[literals.size()][]);
+        this.fields = fields.toArray(new Field[fields.size()]);
+    }
+
+    /**
+     * Writes an envelope with a new message ID into the buffer, replacing its previous content.
+     */
+    public void write(EnvelopeBuffer out, String shellId, String commandId) {
+        write(out, shellId, commandId, null, 0, 0);
+    }
+
+    /**
+     * Writes an envelope with a new message ID and the given payload into the buffer, replacing its previous content.
+     */
+    public void write(EnvelopeBuffer out, String shellId, String commandId, byte[] payload, int off, int len) {
+        out.reset();
+        for (int i = 0; i < fields.length; i++) {
+            out.write(literals[i], 0, literals[i].length);
+            switch (fields[i]) {
+            case MESSAGE_ID:
+                out.writeEscaped("uuid:" + UUID.randomUUID().toString().toUpperCase());
+                break;
+            case SHELL_ID:
+                out.writeEscaped(shellId);
+                break;
+            case COMMAND_ID:
+                out.writeEscaped(commandId);
+                break;
+            case PAYLOAD:
+                out.writeBase64(payload, off, len);
+                break;
+            }
+        }
+        byte[] last = literals[literals.length - 1];
+        out.write(last, 0, last.length);
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
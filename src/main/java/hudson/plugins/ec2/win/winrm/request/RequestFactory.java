@@ -8,6 +8,9 @@ public class RequestFactory {
     private int envelopSize = 153600;
     private String locale = "en-US";
 
+    /* Precompiled envelopes of the requests sent in loops, built on first use */
+    private EnvelopeTemplate getOutputTemplate, sendInputTemplate, signalTemplate, deleteShellTemplate;
+
     public RequestFactory(URL url) {
         this.url = url;
     }
@@ -48,6 +51,38 @@ public class RequestFactory {
         return r;
     }
 
+    public synchronized EnvelopeTemplate getOutputTemplate() {
+        if (getOutputTemplate == null)
+            getOutputTemplate = new EnvelopeTemplate(newGetOutputRequest(EnvelopeTemplate.SHELL_ID_MARKER, EnvelopeTemplate.COMMAND_ID_MARKER));
+        return getOutputTemplate;
+    }
+
+    public synchronized EnvelopeTemplate sendInputTemplate() {
+        if (sendInputTemplate == null)
+            sendInputTemplate = new EnvelopeTemplate(newSendInputRequest(EnvelopeTemplate.PAYLOAD_MARKER_BYTES,
+                    EnvelopeTemplate.SHELL_ID_MARKER, EnvelopeTemplate.COMMAND_ID_MARKER));
+        return sendInputTemplate;
+    }
+
+    public synchronized EnvelopeTemplate signalTemplate() {
+        if (signalTemplate == null)
+            signalTemplate = new EnvelopeTemplate(newSignalRequest(EnvelopeTemplate.SHELL_ID_MARKER, EnvelopeTemplate.COMMAND_ID_MARKER));
+        return signalTemplate;
+    }
+
+    public synchronized EnvelopeTemplate deleteShellTemplate() {
+        if (deleteShellTemplate == null)
+            deleteShellTemplate = new EnvelopeTemplate(newDeleteShellRequest(EnvelopeTemplate.SHELL_ID_MARKER));
+        return deleteShellTemplate;
+    }
+
+    /**
+     * The defaults are baked into the templates, so they have to be rebuilt when a default changes.
+     */
+    private synchronized void resetTemplates() {
+        getOutputTemplate = sendInputTemplate = signalTemplate = deleteShellTemplate = null;
+    }
+
     private void setDefaults(AbstractWinRMRequest r) {
         r.setTimeout(timeout);
         r.setLocale(locale);
@@ -60,6 +95,7 @@ public class RequestFactory {
 
     public void setTimeout(String timeout) {
         this.timeout = timeout;
+        resetTemplates();
     }
 
     public int getEnvelopSize() {
@@ -68,6 +104,7 @@ public class RequestFactory {
 
     public void setEnvelopSize(int envelopSize) {
         this.envelopSize = envelopSize;
+        resetTemplates();
     }
 
     public String getLocale() {
@@ -76,6 +113,7 @@ public class RequestFactory {
 
     public void setLocale(String locale) {
         this.locale = locale;
+        resetTemplates();
     }
 
 }
@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+
+public class ApiMetricsTest {
+
+    @Test
+    public void testCountsCallsByOperationAndCaller() {
+        ApiMetrics metrics = new ApiMetrics();
+        AmazonEC2 ec2 = metrics.wrap(fakeEc2());
+        ec2.setEndpoint("ec2.example.com");
+        ec2.describeInstances(new DescribeInstancesRequest());
+        ec2.describeInstances(new DescribeInstancesRequest());
+        ec2.createTags(new CreateTagsRequest());
+
+        assertEquals(2, metrics.getOperations().size());
+        ApiMetrics.Stats describe = metrics.getOperations().get(0);
+        assertEquals("describeInstances", describe.getName());
+        assertEquals(2, describe.getCalls());
+        assertEquals(0, describe.getErrors());
+        assertEquals(Collections.singletonMap("ApiMetricsTest.testCountsCallsByOperationAndCaller", 2L),
+                describe.getBreakdown());
+
+        assertEquals(1, metrics.getCallers().size());
+        ApiMetrics.Stats caller = metrics.getCallers().get(0);
+        assertEquals(3, caller.getCalls());
+        assertEquals(1, (long) caller.getBreakdown().get("createTags"));
+    }
+
+    @Test
+    public void testCountsErrorsAndThrottling() {
+        ApiMetrics metrics = new ApiMetrics();
+        AmazonEC2 ec2 = metrics.wrap(fakeEc2());
+        for (int i = 0; i < 2; i++) {
+            try {
+                ec2.describeInstances();
+                fail();
+            } catch (AmazonServiceException e) {
+                assertEquals("RequestLimitExceeded", e.getErrorCode());
+            }
+        }
+
+        ApiMetrics.Stats describe = metrics.getOperations().get(0);
+        assertEquals(2, describe.getCalls());
+        assertEquals(2, describe.getErrors());
+        assertEquals(2, describe.getThrottled());
+        assertEquals(Collections.singletonMap("RequestLimitExceeded", 2L), describe.getErrorCodes());
+    }
+
+    /**
+     * Answers requests with empty results, and throttles describeInstances without a request.
+     */
+    private static AmazonEC2 fakeEc2() {
+        return (AmazonEC2) Proxy.newProxyInstance(AmazonEC2.class.getClassLoader(), new Class<?>[] {AmazonEC2.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("describeInstances") && args == null) {
+                            AmazonServiceException e = new AmazonServiceException("Request limit exceeded.");
+                            e.setErrorCode("RequestLimitExceeded");
+                            throw e;
+                        }
+                        if (method.getName().equals("describeInstances"))
+                            return new DescribeInstancesResult();
+                        return null;
+                    }
+                });
+    }
+}
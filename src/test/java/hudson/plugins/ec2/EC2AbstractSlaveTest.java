@@ -6,6 +6,8 @@ import org.jvnet.hudson.test.HudsonTestCase;
 
 import java.util.ArrayList;
 
+import com.google.common.util.concurrent.SettableFuture;
+
 public class EC2AbstractSlaveTest extends HudsonTestCase{
 
     int timeoutInSecs = Integer.MAX_VALUE;
@@ -25,4 +27,32 @@ public class EC2AbstractSlaveTest extends HudsonTestCase{
 
         assertEquals((long)timeoutInSecs * 1000, slave.getLaunchTimeoutInMillis());
     }
+
+    public void testSlaveIsKeptUntilTerminated() throws Exception {
+        EC2AbstractSlave slave = new EC2AbstractSlave("name","id","description","fs",1,null,"label",null,null,"init", new ArrayList<NodeProperty<?>>(),"root","jvm",false,"idle",null,"cloud",false,false,Integer.MAX_VALUE, new UnixData("remote", "22"),false, false) {
+            @Override
+            public void terminate() {
+            }
+
+            @Override
+            public String getEc2Type() {
+                return null;
+            }
+        };
+        hudson.addNode(slave);
+
+        SettableFuture<Boolean> failed = SettableFuture.create();
+        slave.removeOnceTerminated(failed);
+        failed.set(false);
+        Thread.sleep(500);
+        assertNotNull(hudson.getNode("name"));
+
+        SettableFuture<Boolean> terminated = SettableFuture.create();
+        slave.removeOnceTerminated(terminated);
+        terminated.set(true);
+        for (int i = 0; i < 50 && hudson.getNode("name") != null; i++) {
+            Thread.sleep(100);
+        }
+        assertNull(hudson.getNode("name"));
+    }
 }
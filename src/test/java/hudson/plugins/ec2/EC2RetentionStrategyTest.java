@@ -37,6 +37,16 @@ public class EC2RetentionStrategyTest extends HudsonTestCase {
         }
     }
 
+    public void testWarmPoolSlaveIsNotConnected() throws Exception {
+        EC2RetentionStrategy rs = new EC2RetentionStrategy("30");
+        EC2Computer computer = computerWithIdleTime(0, 0);
+        computer.getNode().setInWarmPool(true);
+
+        rs.start(computer);
+        assertTrue(computer.isTemporarilyOffline());
+        assertSame(EC2WarmPoolMaintainer.WARM_POOL_OFFLINE_CAUSE, computer.getOfflineCause());
+    }
+
     private EC2Computer computerWithIdleTime(final int minutes, final int seconds) throws Exception {
         final EC2AbstractSlave slave = new EC2AbstractSlave("name","id","description","fs",1,null,"label",null,null,"init", new ArrayList<NodeProperty<?>>(),"remote","jvm",false,"idle",null,"cloud",false,false,Integer.MAX_VALUE,null,false,false) {
             @Override
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2;
+
+import java.util.Collections;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.Tag;
+
+public class InstanceInventoryTest extends HudsonTestCase {
+
+    private InstanceInventory inventory;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        AmazonEC2Cloud.testMode = true;
+        inventory = new AmazonEC2Cloud(true, "abc", "def", "us-east-1", "ghi", "3",
+                Collections.<SlaveTemplate> emptyList()).getInventory();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        AmazonEC2Cloud.testMode = false;
+    }
+
+    public void testGoneInstanceIsNotServed() {
+        inventory.update(slaveInstance("i-1"));
+        assertNotNull(inventory.getInstance("i-1"));
+
+        long goneAt = System.currentTimeMillis();
+        inventory.markGone(Collections.singletonList("i-1"), goneAt);
+        assertNull(inventory.getInstance("i-1"));
+
+        // a describe that started before the instance was found gone, such as a background refresh
+        inventory.update(Collections.singletonList(slaveInstance("i-1")), goneAt - 1000);
+        assertNull(inventory.getInstance("i-1"));
+    }
+
+    public void testLaterDescribeOverridesGone() {
+        long goneAt = System.currentTimeMillis();
+        inventory.markGone(Collections.singletonList("i-1"), goneAt);
+        inventory.update(Collections.singletonList(slaveInstance("i-1")), goneAt + 1000);
+        assertNotNull(inventory.getInstance("i-1"));
+    }
+
+    public void testUpdateStateLeavesServedInstanceAlone() {
+        inventory.update(slaveInstance("i-1"));
+        Instance served = inventory.getInstance("i-1");
+
+        inventory.updateState("i-1", InstanceStateName.Stopping);
+        assertEquals(InstanceStateName.Running.toString(), served.getState().getName());
+        assertEquals(InstanceStateName.Stopping.toString(), inventory.getInstance("i-1").getState().getName());
+        assertEquals("ami-1", inventory.getInstance("i-1").getImageId());
+    }
+
+    private static Instance slaveInstance(String id) {
+        return new Instance().withInstanceId(id).withImageId("ami-1")
+                .withState(new InstanceState().withName(InstanceStateName.Running))
+                .withTags(new Tag(EC2Tag.TAG_NAME_JENKINS_SLAVE_TYPE, "demand"));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class InstanceShutdownQueueTest extends HudsonTestCase {
+
+    private AmazonEC2Cloud cloud;
+
+    /* the calls made to EC2, as "operation ids" */
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+
+    /* error codes to fail the next calls with, one call each */
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        AmazonEC2Cloud.testMode = true;
+        cloud = new AmazonEC2Cloud(true, "abc", "def", "us-east-1", "ghi", "3",
+                Collections.<SlaveTemplate> emptyList());
+        cloud.connection = fakeEc2();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        AmazonEC2Cloud.testMode = false;
+    }
+
+    public void testRequestsOfAKindAreSentTogether() throws Exception {
+        ListenableFuture<Boolean> t1 = cloud.getShutdownQueue().terminate("i-1");
+        ListenableFuture<Boolean> t2 = cloud.getShutdownQueue().terminate("i-2");
+        ListenableFuture<Boolean> s3 = cloud.getShutdownQueue().stop("i-3");
+
+        assertTrue(get(t1));
+        assertTrue(get(t2));
+        assertTrue(get(s3));
+        assertEquals(Arrays.asList("terminateInstances [i-1, i-2]", "stopInstances [i-3]"), calls);
+    }
+
+    public void testBadIdSplitsTheBatch() throws Exception {
+        ListenableFuture<Boolean> t1 = cloud.getShutdownQueue().terminate("i-1");
+        ListenableFuture<Boolean> gone = cloud.getShutdownQueue().terminate("i-gone");
+
+        assertTrue(get(t1));
+        // already gone counts as terminated
+        assertTrue(get(gone));
+        assertEquals(Arrays.asList("terminateInstances [i-1, i-gone]", "terminateInstances [i-1]",
+                "terminateInstances [i-gone]"), calls);
+    }
+
+    public void testThrottledBatchIsRetriedWhole() throws Exception {
+        failures.add("RequestLimitExceeded");
+        ListenableFuture<Boolean> t1 = cloud.getShutdownQueue().terminate("i-1");
+        ListenableFuture<Boolean> t2 = cloud.getShutdownQueue().terminate("i-2");
+
+        assertTrue(get(t1));
+        assertTrue(get(t2));
+        assertEquals(Arrays.asList("terminateInstances [i-1, i-2]", "terminateInstances [i-1, i-2]"), calls);
+    }
+
+    public void testFailsAfterTheLastAttempt() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            failures.add("Unavailable");
+        }
+        ListenableFuture<Boolean> s1 = cloud.getShutdownQueue().stop("i-1");
+
+        assertFalse(get(s1));
+        assertEquals(5, calls.size());
+    }
+
+    private static boolean get(ListenableFuture<Boolean> f) throws Exception {
+        return f.get(2, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Records the terminate and stop calls, fails those naming i-gone as EC2 does, and the others with
+     * the queued {@link #failures}.
+     */
+    private AmazonEC2 fakeEc2() {
+        return (AmazonEC2) Proxy.newProxyInstance(AmazonEC2.class.getClassLoader(),
+                new Class<?>[] {AmazonEC2.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        List<String> ids;
+                        if (args != null && args[0] instanceof TerminateInstancesRequest)
+                            ids = ((TerminateInstancesRequest) args[0]).getInstanceIds();
+                        else if (args != null && args[0] instanceof StopInstancesRequest)
+                            ids = ((StopInstancesRequest) args[0]).getInstanceIds();
+                        else
+                            return null;
+                        calls.add(method.getName() + " " + ids);
+
+                        String errorCode = null;
+                        if (ids.contains("i-gone"))
+                            errorCode = "InvalidInstanceID.NotFound";
+                        else if (!failures.isEmpty())
+                            errorCode = failures.remove(0);
+                        if (errorCode != null) {
+                            AmazonServiceException e = new AmazonServiceException(errorCode);
+                            e.setErrorCode(errorCode);
+                            throw e;
+                        }
+                        return null;
+                    }
+                });
+    }
+}
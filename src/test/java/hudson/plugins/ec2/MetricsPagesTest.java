@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2;
+
+import java.util.Collections;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+/**
+ * Renders the metrics pages linked from the cloud's row of the nodes page.
+ */
+public class MetricsPagesTest extends HudsonTestCase {
+
+    private AmazonEC2Cloud cloud;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        AmazonEC2Cloud.testMode = true;
+        cloud = new AmazonEC2Cloud(true, "abc", "def", "us-east-1", "ghi", "3",
+                Collections.<SlaveTemplate> emptyList());
+        hudson.clouds.add(cloud);
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        AmazonEC2Cloud.testMode = false;
+    }
+
+    public void testLaunchMetricsPage() throws Exception {
+        LaunchTimer timer = new LaunchTimer();
+        timer.mark(LaunchTimer.Phase.PROVISION);
+        timer.mark(LaunchTimer.Phase.RUNNING);
+        cloud.getLaunchMetrics().record(null, timer, true);
+
+        HtmlPage page = createWebClient().goTo("cloud/" + cloud.name + "/launchMetrics/");
+        assertTrue(page.asText().contains("EC2 launch metrics"));
+    }
+
+    public void testApiMetricsPage() throws Exception {
+        cloud.getApiMetrics().record("DescribeInstances", "InstanceInventory.refresh", 120, null);
+        cloud.getApiMetrics().record("TerminateInstances", "InstanceShutdownQueue.flush", 80, "RequestLimitExceeded");
+
+        HtmlPage page = createWebClient().goTo("cloud/" + cloud.name + "/apiMetrics/");
+        assertTrue(page.asText().contains("DescribeInstances"));
+        assertTrue(page.asText().contains("InstanceShutdownQueue.flush"));
+    }
+}
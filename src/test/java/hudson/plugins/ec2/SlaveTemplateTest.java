@@ -24,14 +24,21 @@
 package hudson.plugins.ec2;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import hudson.model.Node;
+import hudson.util.FormValidation;
 
 import org.jvnet.hudson.test.HudsonTestCase;
 
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.InstanceStateName;
 import com.amazonaws.services.ec2.model.InstanceType;
 import com.amazonaws.services.ec2.model.SpotInstanceType;
+import com.amazonaws.services.ec2.model.Tag;
 
 /**
  * Basic test to validate SlaveTemplate.
@@ -152,6 +159,97 @@ public class SlaveTemplateTest extends HudsonTestCase {
     }
 
 
+    public void testConfigRoundtripWarmPool() throws Exception {
+        String ami = "ami1";
+        String description = "foo ami";
+
+        SlaveTemplate orig = new SlaveTemplate(ami, EC2AbstractSlave.TEST_ZONE, null, "default", "foo", InstanceType.M1Large, "ttt", Node.Mode.NORMAL, description, "bar", "bbb", "aaa", "10", "fff", null, "-Xmx1g", true, "subnet 456", null, null, false, null, "", false, false, "", false, "", false, false, "3");
+        assertEquals(3, orig.warmPoolSize);
+
+        List<SlaveTemplate> templates = new ArrayList<SlaveTemplate>();
+        templates.add(orig);
+
+        AmazonEC2Cloud ac = new AmazonEC2Cloud(false, "abc", "def", "us-east-1", "ghi", "3", templates);
+        hudson.clouds.add(ac);
+
+        submit(createWebClient().goTo("configure").getFormByName("config"));
+        SlaveTemplate received = ((EC2Cloud)hudson.clouds.iterator().next()).getTemplate(description);
+        assertEqualBeans(orig, received, "ami,description,stopOnTerminate,warmPoolSize");
+    }
+
+    public void testInvalidWarmPoolSizeMeansNoPool(){
+        SlaveTemplate st = new SlaveTemplate("", EC2AbstractSlave.TEST_ZONE, null, "default", "foo", InstanceType.M1Large, "ttt", Node.Mode.NORMAL, "", "bar", "bbb", "aaa", "10", "fff", null, "-Xmx1g", false, "subnet 456", null, null, false, null, "iamInstanceProfile", false, false, null, false, "", false, false, "-2");
+        assertEquals(0, st.warmPoolSize);
+        assertEquals("", st.getWarmPoolSizeStr());
+    }
+
+    public void testCountWarmPool() throws Exception {
+        SlaveTemplate st = new SlaveTemplate("ami1", EC2AbstractSlave.TEST_ZONE, null, "default", "foo", InstanceType.M1Large, "ttt", Node.Mode.NORMAL, "foo ami", "bar", "bbb", "aaa", "10", "fff", null, "-Xmx1g", true, "subnet 456", null, null, false, null, "", false, false, "", false, "", false, false, "2");
+        SlaveTemplate other = new SlaveTemplate("ami2", EC2AbstractSlave.TEST_ZONE, null, "default", "foo", InstanceType.M1Large, "ttt", Node.Mode.NORMAL, "bar ami", "bar", "bbb", "aaa", "10", "fff", null, "-Xmx1g", true, "subnet 456", null, null, false, null, "", false, false, "", false, "", false, false, "2");
+        AmazonEC2Cloud ac = new AmazonEC2Cloud(false, "abc", "def", "us-east-1", "ghi", "3", Arrays.asList(st, other));
+
+        InstanceInventory inventory = ac.getInventory();
+        inventory.update(instance("i-1", InstanceStateName.Running, st.getWarmPoolTagValue()));
+        inventory.update(instance("i-2", InstanceStateName.Stopped, st.getWarmPoolTagValue()));
+        inventory.update(instance("i-3", InstanceStateName.Terminated, st.getWarmPoolTagValue()));
+        inventory.update(instance("i-4", InstanceStateName.Stopped, other.getWarmPoolTagValue()));
+        inventory.update(instance("i-5", InstanceStateName.Stopped, null));
+
+        assertEquals(2, st.countWarmPool());
+        assertEquals(1, other.countWarmPool());
+    }
+
+    public void testSlaveThatLeftTheWarmPoolIsNotCounted() throws Exception {
+        SlaveTemplate st = new SlaveTemplate("ami1", EC2AbstractSlave.TEST_ZONE, null, "default", "foo", InstanceType.M1Large, "ttt", Node.Mode.NORMAL, "foo ami", "bar", "bbb", "aaa", "10", "fff", null, "-Xmx1g", true, "subnet 456", null, null, false, null, "", false, false, "", false, "", false, false, "2");
+        AmazonEC2Cloud ac = new AmazonEC2Cloud(false, "abc", "def", "us-east-1", "ghi", "3", Collections.singletonList(st));
+        ac.getInventory().update(instance("i-1", InstanceStateName.Running, st.getWarmPoolTagValue()));
+        ac.getInventory().update(instance("i-2", InstanceStateName.Stopped, st.getWarmPoolTagValue()));
+
+        // in the pool, so not connected when added
+        EC2OndemandSlave slave = new EC2OndemandSlave("i-1");
+        slave.setInWarmPool(true);
+        hudson.addNode(slave);
+        assertEquals(2, st.countWarmPool());
+
+        // such as after failing to be stopped: still tagged, but no longer in the pool
+        slave.setInWarmPool(false);
+        assertEquals(1, st.countWarmPool());
+    }
+
+    public void testCheckWarmPoolSize() {
+        SlaveTemplate.DescriptorImpl d = hudson.getDescriptorByType(SlaveTemplate.DescriptorImpl.class);
+        assertEquals(FormValidation.Kind.OK, d.doCheckWarmPoolSizeStr("").kind);
+        assertEquals(FormValidation.Kind.OK, d.doCheckWarmPoolSizeStr(" 3 ").kind);
+        assertEquals(FormValidation.Kind.ERROR, d.doCheckWarmPoolSizeStr("-2").kind);
+        assertEquals(FormValidation.Kind.ERROR, d.doCheckWarmPoolSizeStr("many").kind);
+    }
+
+    public void testWarmInstancesAreDrawnFirst() {
+        Instance cold = instance("i-1", InstanceStateName.Stopped, null);
+        Instance warm = instance("i-2", InstanceStateName.Stopped, "ami1 foo ami");
+        List<Instance> stopped = new ArrayList<Instance>(Arrays.asList(cold, warm));
+
+        Collections.sort(stopped, SlaveTemplate.WARM_FIRST);
+        assertEquals(Arrays.asList(warm, cold), stopped);
+    }
+
+    private static Instance instance(String id, InstanceStateName state, String warmPoolTagValue) {
+        Instance i = new Instance().withInstanceId(id).withImageId("ami1")
+                .withState(new InstanceState().withName(state))
+                .withTags(new Tag(EC2Tag.TAG_NAME_JENKINS_SLAVE_TYPE, "demand"));
+        if (warmPoolTagValue != null)
+            i.getTags().add(new Tag(EC2Tag.TAG_NAME_JENKINS_WARM_POOL, warmPoolTagValue));
+        return i;
+    }
+
+    public void testCheckMinIdleExecutors() {
+        SlaveTemplate.DescriptorImpl d = hudson.getDescriptorByType(SlaveTemplate.DescriptorImpl.class);
+        assertEquals(FormValidation.Kind.OK, d.doCheckMinIdleExecutorsStr(null).kind);
+        assertEquals(FormValidation.Kind.OK, d.doCheckMinIdleExecutorsStr(" ").kind);
+        assertEquals(FormValidation.Kind.OK, d.doCheckMinIdleExecutorsStr(" 2 ").kind);
+        assertEquals(FormValidation.Kind.ERROR, d.doCheckMinIdleExecutorsStr("-1").kind);
+    }
+
     public void testNullTimeoutShouldReturnMaxInt(){
         SlaveTemplate st = new SlaveTemplate("", EC2AbstractSlave.TEST_ZONE, null, "default", "foo", InstanceType.M1Large, "ttt", Node.Mode.NORMAL, "", "bar", "bbb", "aaa", "10", "fff", null, "-Xmx1g", false, "subnet 456", null, null, false, null, "iamInstanceProfile", false, false, null, false, "");
         assertEquals(Integer.MAX_VALUE, st.getLaunchTimeout());
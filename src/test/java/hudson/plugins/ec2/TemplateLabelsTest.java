@@ -99,4 +99,19 @@ public class TemplateLabelsTest extends HudsonTestCase{
 		assertEquals(false, ac.canProvision(null));
 	}
 
+	public void testRepeatedLookups() throws Exception{
+		setUpCloud(LABEL1 + " " + LABEL2);
+
+		Label label = Label.parseExpression(LABEL1 + " && " + LABEL2);
+		SlaveTemplate t = ac.getTemplate(label);
+		assertNotNull(t);
+		assertSame(t, ac.getTemplate(label));
+		assertNull(ac.getTemplate(new LabelAtom("aaa")));
+		assertNull(ac.getTemplate(new LabelAtom("aaa")));
+
+		ac.invalidateTemplateIndex();
+		assertSame(t, ac.getTemplate(label));
+		assertSame(t, ac.getTemplate((Label) null));
+	}
+
 }
@@ -1,10 +1,13 @@
 package hudson.plugins.ec2;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import hudson.plugins.ec2.win.winrm.request.DeleteShellRequest;
+import hudson.plugins.ec2.win.winrm.request.EnvelopeBuffer;
 import hudson.plugins.ec2.win.winrm.request.ExecuteCommandRequest;
 import hudson.plugins.ec2.win.winrm.request.GetOutputRequest;
 import hudson.plugins.ec2.win.winrm.request.OpenShellRequest;
+import hudson.plugins.ec2.win.winrm.request.RequestFactory;
 import hudson.plugins.ec2.win.winrm.request.SendInputRequest;
 import hudson.plugins.ec2.win.winrm.request.SignalRequest;
 import hudson.plugins.ec2.win.winrm.soap.Namespaces;
@@ -89,6 +92,50 @@ public class WinRMMessageTest {
         assertEquals("http://schemas.microsoft.com/wbem/wsman/1/windows/shell/signal/terminate", xpath("//rsp:Signal[@CommandId=\"COMMANDID\"]/rsp:Code", r.build()));
     }
 
+    @Test
+    public void testTemplatesMatchBuilders() throws Exception {
+        RequestFactory factory = new RequestFactory(url);
+        EnvelopeBuffer buffer = new EnvelopeBuffer();
+        String[] paths = { "//a:Action", "//a:To", "//a:ReplyTo/a:Address", "//w:ResourceURI", "//w:MaxEnvelopeSize",
+                "//w:OperationTimeout", "//w:Selector[@Name=\"ShellId\"]",
+                "//rsp:Receive/rsp:DesiredStream[@CommandId=\"COMMAND&<ID\"]",
+                "//rsp:Send/rsp:Stream[@CommandId=\"COMMAND&<ID\"]", "//rsp:Send/rsp:Stream/@Name",
+                "//rsp:Signal[@CommandId=\"COMMAND&<ID\"]/rsp:Code" };
+
+        byte[] input = "dir c:\\\r\n".getBytes("UTF-8");
+        factory.sendInputTemplate().write(buffer, "SHELLID", "COMMAND&<ID", input, 0, input.length);
+        assertSameValues(paths, factory.newSendInputRequest(input, "SHELLID", "COMMAND&<ID").build(), parse(buffer));
+
+        factory.getOutputTemplate().write(buffer, "SHELLID", "COMMAND&<ID");
+        assertSameValues(paths, factory.newGetOutputRequest("SHELLID", "COMMAND&<ID").build(), parse(buffer));
+
+        factory.signalTemplate().write(buffer, "SHELLID", "COMMAND&<ID");
+        assertSameValues(paths, factory.newSignalRequest("SHELLID", "COMMAND&<ID").build(), parse(buffer));
+
+        factory.deleteShellTemplate().write(buffer, "SHELLID", null);
+        assertSameValues(paths, factory.newDeleteShellRequest("SHELLID").build(), parse(buffer));
+
+        // each envelope gets its own message ID
+        String first = xpath("//a:MessageID", parse(buffer));
+        factory.deleteShellTemplate().write(buffer, "SHELLID", null);
+        assertFalse(first.equals(xpath("//a:MessageID", parse(buffer))));
+
+        // defaults are picked up by the templates
+        factory.setTimeout("PT5S");
+        factory.getOutputTemplate().write(buffer, "SHELLID", "COMMAND&<ID");
+        assertEquals("PT5S", xpath("//w:OperationTimeout", parse(buffer)));
+    }
+
+    private void assertSameValues(String[] paths, Document expected, Document actual) {
+        for (String path : paths) {
+            assertEquals(path, xpath(path, expected), xpath(path, actual));
+        }
+    }
+
+    private Document parse(EnvelopeBuffer buffer) throws Exception {
+        return DocumentHelper.parseText(new String(buffer.getBuffer(), 0, buffer.size(), "UTF-8"));
+    }
+
     private String xpath(String xpath, Document doc)
     {
         XPath xp = DocumentHelper.createXPath(xpath);
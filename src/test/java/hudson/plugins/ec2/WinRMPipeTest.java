@@ -0,0 +1,105 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import hudson.plugins.ec2.win.winrm.BoundedPipe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class WinRMPipeTest {
+
+    @Test
+    public void testTransfersAcrossThreads() throws Exception {
+        final BoundedPipe pipe = new BoundedPipe(1000);
+        final byte[] data = new byte[100000];
+        new Random(42).nextBytes(data);
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = pipe.getSink();
+                    // odd sizes, so that writes wrap around the end of the buffer
+                    for (int off = 0; off < data.length; off += 777) {
+                        out.write(data, off, Math.min(777, data.length - off));
+                    }
+                    out.close();
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        writer.start();
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        InputStream in = pipe.getSource();
+        byte[] buf = new byte[333];
+        for (int n; (n = in.read(buf)) != -1;) {
+            received.write(buf, 0, n);
+        }
+        writer.join();
+        assertArrayEquals(data, received.toByteArray());
+    }
+
+    @Test
+    public void testReadCoalescesWrites() throws Exception {
+        BoundedPipe pipe = new BoundedPipe(1024);
+        OutputStream out = pipe.getSink();
+        out.write('a');
+        out.write("bcd".getBytes());
+        out.write("efgh".getBytes());
+        out.close();
+
+        byte[] buf = new byte[1024];
+        InputStream in = pipe.getSource();
+        assertEquals(8, in.read(buf));
+        assertEquals("abcdefgh", new String(buf, 0, 8));
+        assertEquals(-1, in.read(buf));
+    }
+
+    @Test
+    public void testDrainedFromWriteListener() throws Exception {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final BoundedPipe[] pipe = new BoundedPipe[1];
+        // reads without blocking from the writing thread, like the stdin of a process is sent
+        pipe[0] = new BoundedPipe(10, new Runnable() {
+            public void run() {
+                try {
+                    byte[] buf = new byte[4];
+                    for (int n; (n = pipe[0].readAvailable(buf, 0, buf.length)) > 0;) {
+                        received.write(buf, 0, n);
+                    }
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+
+        // more than fits in the buffer at once
+        byte[] data = "the quick brown fox jumps over the lazy dog".getBytes();
+        pipe[0].getSink().write(data);
+        assertArrayEquals(data, received.toByteArray());
+        pipe[0].getSink().close();
+        assertEquals(-1, pipe[0].readAvailable(new byte[1], 0, 1));
+    }
+
+    @Test
+    public void testWriteFailsOnceReaderClosed() throws Exception {
+        BoundedPipe pipe = new BoundedPipe(16);
+        pipe.getSink().write(new byte[10]);
+        pipe.getSource().close();
+        try {
+            pipe.getSink().write(new byte[10]);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
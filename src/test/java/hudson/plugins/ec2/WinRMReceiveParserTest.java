@@ -0,0 +1,144 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import hudson.plugins.ec2.win.winrm.ReceiveResponseParser;
+import hudson.plugins.ec2.win.winrm.soap.Namespaces;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.XPath;
+import org.jaxen.SimpleNamespaceContext;
+import org.junit.Test;
+
+/**
+ * Checks the streaming Receive parser against the dom4j/XPath reading it replaced.
+ */
+public class WinRMReceiveParserTest {
+
+    private static final String DONE = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/CommandState/Done";
+    private static final String RUNNING = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/CommandState/Running";
+
+    @Test
+    public void testRunning() throws Exception {
+        byte[] out1 = random(1000), out2 = random(4097), err = random(2);
+        String xml = response(RUNNING, null, stream("stdout", out1), stream("stderr", err), stream("stdout", out2));
+
+        check(xml);
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream(), stderr = new ByteArrayOutputStream();
+        ReceiveResponseParser parser = new ReceiveResponseParser();
+        assertTrue(parser.parse(in(xml), "UTF-8", stdout, stderr));
+        assertArrayEquals(concat(out1, out2), stdout.toByteArray());
+        assertArrayEquals(err, stderr.toByteArray());
+    }
+
+    @Test
+    public void testDone() throws Exception {
+        byte[] out = random(1);
+        String xml = response(DONE, "42", stream("stdout", out), "<rsp:Stream Name=\"stdout\" End=\"true\"/>");
+
+        check(xml);
+        ReceiveResponseParser parser = new ReceiveResponseParser();
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        assertFalse(parser.parse(in(xml), null, stdout, new ByteArrayOutputStream()));
+        assertEquals(42, parser.getExitCode());
+        assertArrayEquals(out, stdout.toByteArray());
+    }
+
+    @Test
+    public void testWrappedBase64() throws Exception {
+        byte[] out = random(300);
+        String wrapped = Base64.encodeBase64String(out).replaceAll("(.{76})", "$1\r\n");
+        String xml = response(RUNNING, null, "<rsp:Stream Name=\"stdout\" CommandId=\"C\">" + wrapped + "</rsp:Stream>");
+
+        check(xml);
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        new ReceiveResponseParser().parse(in(xml), "UTF-8", stdout, new ByteArrayOutputStream());
+        assertArrayEquals(out, stdout.toByteArray());
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        ReceiveResponseParser parser = new ReceiveResponseParser();
+        for (int size : new int[] {10000, 3, 0, 5000}) {
+            byte[] out = random(size);
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            parser.parse(in(response(RUNNING, null, stream("stdout", out))), "UTF-8", stdout, new ByteArrayOutputStream());
+            assertArrayEquals(out, stdout.toByteArray());
+        }
+    }
+
+    /**
+     * Compares the parser with the dom4j/XPath reading of the same response.
+     */
+    private void check(String xml) throws Exception {
+        Document doc = DocumentHelper.parseText(xml);
+        SimpleNamespaceContext ns = new SimpleNamespaceContext();
+        ns.addNamespace(Namespaces.NS_WIN_SHELL.getPrefix(), Namespaces.NS_WIN_SHELL.getURI());
+
+        XPath streams = DocumentHelper.createXPath("//rsp:Stream");
+        streams.setNamespaceContext(ns);
+        ByteArrayOutputStream expectedOut = new ByteArrayOutputStream(), expectedErr = new ByteArrayOutputStream();
+        for (Element e : (List<Element>) streams.selectNodes(doc)) {
+            byte[] decoded = new Base64().decode(e.getText());
+            (e.attribute("Name").getText().equals("stdout") ? expectedOut : expectedErr).write(decoded);
+        }
+        XPath done = DocumentHelper.createXPath("//*[@State='" + DONE + "']");
+        boolean expectedDone = !done.selectNodes(doc).isEmpty();
+
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream(), stderr = new ByteArrayOutputStream();
+        ReceiveResponseParser parser = new ReceiveResponseParser();
+        assertEquals(!expectedDone, parser.parse(in(xml), "UTF-8", stdout, stderr));
+        assertArrayEquals(expectedOut.toByteArray(), stdout.toByteArray());
+        assertArrayEquals(expectedErr.toByteArray(), stderr.toByteArray());
+        if (expectedDone) {
+            XPath exitCode = DocumentHelper.createXPath("//rsp:ExitCode");
+            exitCode.setNamespaceContext(ns);
+            assertEquals(Integer.parseInt(((Element) exitCode.selectSingleNode(doc)).getText()), parser.getExitCode());
+        }
+    }
+
+    private static String response(String state, String exitCode, String... streams) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\" xmlns:rsp=\"" + Namespaces.NS_WIN_SHELL.getURI() + "\">"
+                + "<s:Header/><s:Body><rsp:ReceiveResponse>");
+        for (String s : streams) {
+            xml.append(s);
+        }
+        xml.append("<rsp:CommandState CommandId=\"C\" State=\"").append(state).append("\">");
+        if (exitCode != null) {
+            xml.append("<rsp:ExitCode>").append(exitCode).append("</rsp:ExitCode>");
+        }
+        return xml.append("</rsp:CommandState></rsp:ReceiveResponse></s:Body></s:Envelope>").toString();
+    }
+
+    private static String stream(String name, byte[] data) {
+        return "<rsp:Stream Name=\"" + name + "\" CommandId=\"C\">" + Base64.encodeBase64String(data) + "</rsp:Stream>";
+    }
+
+    private static ByteArrayInputStream in(String xml) throws Exception {
+        return new ByteArrayInputStream(xml.getBytes("UTF-8"));
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+}
@@ -0,0 +1,49 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import hudson.plugins.ec2.win.winrm.RetryPolicy;
+import hudson.plugins.ec2.win.winrm.RetryPolicy.Failure;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.HttpHostConnectException;
+import org.junit.Test;
+
+public class WinRMRetryPolicyTest {
+
+    @Test
+    public void testClassify() {
+        assertEquals(Failure.TIMEOUT, RetryPolicy.classify(new ConnectTimeoutException()));
+        assertEquals(Failure.CONNECT, RetryPolicy.classify(new ConnectException()));
+        assertEquals(Failure.CONNECT, RetryPolicy.classify(new HttpHostConnectException(new HttpHost("localhost"), new ConnectException())));
+        assertEquals(Failure.IO, RetryPolicy.classify(new SocketException("Connection reset")));
+        assertEquals(Failure.IO, RetryPolicy.classify(new IOException()));
+    }
+
+    @Test
+    public void testOnlyUnprocessedRequestsAreRetried() {
+        assertTrue(RetryPolicy.shouldRetry(Failure.AUTH, 0));
+        assertTrue(RetryPolicy.shouldRetry(Failure.TIMEOUT, 0));
+        assertFalse(RetryPolicy.shouldRetry(Failure.CONNECT, 0));
+        assertFalse(RetryPolicy.shouldRetry(Failure.IO, 0));
+        assertFalse(RetryPolicy.shouldRetry(Failure.AUTH, 3));
+    }
+
+    @Test
+    public void testBackoff() {
+        for (int i = 0; i < 100; i++) {
+            long first = RetryPolicy.delay(0);
+            assertTrue(first >= 250 && first <= 500);
+            long third = RetryPolicy.delay(2);
+            assertTrue(third >= 1000 && third <= 2000);
+            long capped = RetryPolicy.delay(30);
+            assertTrue(capped >= 15000 && capped <= 30000);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-, Kohsuke Kawaguchi, Sun Microsystems, Inc., and a number of other of contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.ec2.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Calendar;
+
+import org.junit.Test;
+
+public class TimeOfDayScheduleTest {
+
+    @Test
+    public void testEmptyIsAlwaysActive() {
+        assertTrue(TimeOfDaySchedule.parse("").isActive(at(3, 0)));
+        assertTrue(TimeOfDaySchedule.parse(null).isActive(at(23, 59)));
+    }
+
+    @Test
+    public void testRanges() {
+        TimeOfDaySchedule s = TimeOfDaySchedule.parse("07:00-19:00, 21:30 - 22:00");
+        assertFalse(s.isActive(at(6, 59)));
+        assertTrue(s.isActive(at(7, 0)));
+        assertTrue(s.isActive(at(18, 59)));
+        assertFalse(s.isActive(at(19, 0)));
+        assertTrue(s.isActive(at(21, 45)));
+        assertFalse(s.isActive(at(22, 0)));
+    }
+
+    @Test
+    public void testOverMidnight() {
+        TimeOfDaySchedule s = TimeOfDaySchedule.parse("22:00-2:00");
+        assertTrue(s.isActive(at(23, 0)));
+        assertTrue(s.isActive(at(1, 59)));
+        assertFalse(s.isActive(at(2, 0)));
+        assertFalse(s.isActive(at(12, 0)));
+    }
+
+    @Test
+    public void testMalformed() {
+        for (String spec : new String[] {"7-19", "07:00-25:00", "07:00-19:00,", "07:60-08:00"}) {
+            try {
+                TimeOfDaySchedule.parse(spec);
+                fail(spec);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    private static Calendar at(int hour, int minute) {
+        Calendar c = Calendar.getInstance();
+        c.set(Calendar.HOUR_OF_DAY, hour);
+        c.set(Calendar.MINUTE, minute);
+        return c;
+    }
+}